@@ -1,5 +1,8 @@
 package org.jtornadoweb;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 import org.jtornadoweb.Web.Application;
 import org.jtornadoweb.Web.RequestHandler;
 
@@ -41,7 +44,8 @@ public class App {
 			sb.append("Filename is \r\n");
 			sb.append(request.files.get("filename").get("filename"));
 			sb.append("\r\n");
-			sb.append(request.files.get("filename").get("body"));
+			sb.append(StandardCharsets.UTF_8.decode((ByteBuffer) request.files
+					.get("filename").get("body")));
 			write(sb.toString());
 		}
 	}
@@ -0,0 +1,215 @@
+package org.jtornadoweb;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Arena of ByteBuffers shared by the IOStreams. Sizes are rounded up to a
+ * power of two size class between <b>minSize</b> and <b>maxSize</b>, each
+ * class with its own free list. Released buffers go first to a small cache of
+ * the releasing thread, then to the lock free free list shared by all
+ * threads, up to <b>maxPooledBytes</b>. Beyond that buffers are left to the
+ * GC.
+ * <p>
+ * The default arena hands direct buffers: the socket reads and writes into
+ * them with no copy, and allocating them, which is slow and only freed by
+ * the GC, happens only when the pool is empty. Sizes above the largest class
+ * are never pooled and get a heap buffer, so a large body doesn't hold
+ * native memory until the next GC.
+ * </p>
+ *
+ * <pre>
+ * ByteBuffer buffer = BufferPool.getDefault().acquire(8192);
+ * ...
+ * BufferPool.getDefault().release(buffer);
+ * </pre>
+ *
+ * Thread safe.
+ */
+public class BufferPool {
+
+	/**
+	 * Buffers kept per size class in the cache of each thread.
+	 */
+	public static int THREAD_CACHE_SIZE = 32;
+
+	private static final BufferPool DEFAULT = new BufferPool(true, 1024,
+			65536, 64L * 1024 * 1024);
+
+	private final boolean direct;
+	private final int minSize;
+	private final int maxSize;
+	private final long maxPooledBytes;
+	private final ConcurrentLinkedQueue<ByteBuffer>[] shared;
+	private final ThreadLocal<ArrayDeque<ByteBuffer>[]> caches;
+
+	private final AtomicLong leased = new AtomicLong();
+	private final AtomicLong pooled = new AtomicLong();
+	private final AtomicLong highWater = new AtomicLong();
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * @param direct
+	 *            allocates direct buffers if true, heap buffers otherwise.
+	 * @param minSize
+	 *            smallest size class, rounded up to a power of two.
+	 * @param maxSize
+	 *            largest size class, rounded up to a power of two.
+	 * @param maxPooledBytes
+	 *            bytes kept by the pool, caches included.
+	 */
+	public BufferPool(boolean direct, int minSize, int maxSize,
+			long maxPooledBytes) {
+		this.direct = direct;
+		this.minSize = roundUp(minSize);
+		this.maxSize = Math.max(this.minSize, roundUp(maxSize));
+		this.maxPooledBytes = maxPooledBytes;
+		final int classes = sizeClass(this.maxSize) + 1;
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		ConcurrentLinkedQueue<ByteBuffer>[] shared = new ConcurrentLinkedQueue[classes];
+		for (int i = 0; i < classes; i++)
+			shared[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.shared = shared;
+		this.caches = new ThreadLocal<ArrayDeque<ByteBuffer>[]>() {
+			@Override
+			protected ArrayDeque<ByteBuffer>[] initialValue() {
+				@SuppressWarnings({ "unchecked", "rawtypes" })
+				ArrayDeque<ByteBuffer>[] cache = new ArrayDeque[classes];
+				for (int i = 0; i < classes; i++)
+					cache[i] = new ArrayDeque<ByteBuffer>();
+				return cache;
+			}
+		};
+	}
+
+	/**
+	 * The arena used by the IOStreams.
+	 *
+	 * @return
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	private static int roundUp(int size) {
+		int n = 1;
+		while (n < size)
+			n <<= 1;
+		return n;
+	}
+
+	private int sizeClass(int capacity) {
+		return Integer.numberOfTrailingZeros(capacity)
+				- Integer.numberOfTrailingZeros(minSize);
+	}
+
+	/**
+	 * A cleared buffer with at least <b>size</b> bytes of capacity, its limit
+	 * set to <b>size</b>. Above the largest size class, a heap buffer of
+	 * exactly <b>size</b> bytes.
+	 *
+	 * @param size
+	 * @return
+	 */
+	public ByteBuffer acquire(int size) {
+		int capacity = size <= minSize ? minSize : roundUp(size);
+		ByteBuffer buffer = null;
+		if (capacity <= maxSize) {
+			int sizeClass = sizeClass(capacity);
+			buffer = caches.get()[sizeClass].pollLast();
+			if (buffer == null)
+				buffer = shared[sizeClass].poll();
+			if (buffer != null)
+				pooled.addAndGet(-capacity);
+		} else {
+			capacity = size;
+			allocated.incrementAndGet();
+			buffer = ByteBuffer.allocate(capacity);
+		}
+		if (buffer == null) {
+			allocated.incrementAndGet();
+			buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer
+					.allocate(capacity);
+		}
+		long now = leased.addAndGet(capacity);
+		long high;
+		while (now > (high = highWater.get())
+				&& !highWater.compareAndSet(high, now))
+			;
+		buffer.limit(size);
+		return buffer;
+	}
+
+	/**
+	 * Gives the buffer back. It must not be used after this call.
+	 *
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		leased.addAndGet(-capacity);
+		if (capacity > maxSize || capacity < minSize
+				|| Integer.bitCount(capacity) != 1
+				|| buffer.isDirect() != direct)
+			return;
+		if (pooled.addAndGet(capacity) > maxPooledBytes) {
+			pooled.addAndGet(-capacity);
+			return;
+		}
+		buffer.clear();
+		int sizeClass = sizeClass(capacity);
+		ArrayDeque<ByteBuffer> cache = caches.get()[sizeClass];
+		if (cache.size() < THREAD_CACHE_SIZE)
+			cache.addLast(buffer);
+		else
+			shared[sizeClass].offer(buffer);
+	}
+
+	/**
+	 * Forgets a buffer that may still be in use by another thread: it is no
+	 * longer counted as leased, and left to the GC instead of being reused.
+	 *
+	 * @param buffer
+	 */
+	public void discard(ByteBuffer buffer) {
+		leased.addAndGet(-buffer.capacity());
+	}
+
+	/**
+	 * Bytes of the buffers acquired and not released yet.
+	 *
+	 * @return
+	 */
+	public long getLeasedBytes() {
+		return leased.get();
+	}
+
+	/**
+	 * Bytes of the buffers kept for reuse, caches of the threads included.
+	 *
+	 * @return
+	 */
+	public long getPooledBytes() {
+		return pooled.get();
+	}
+
+	/**
+	 * Highest value {@link #getLeasedBytes()} reached.
+	 *
+	 * @return
+	 */
+	public long getHighWaterBytes() {
+		return highWater.get();
+	}
+
+	/**
+	 * Buffers allocated because the pool had none of the size class.
+	 *
+	 * @return
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+}
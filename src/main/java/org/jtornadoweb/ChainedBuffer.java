@@ -0,0 +1,353 @@
+package org.jtornadoweb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Read side buffer of an IOStream. A chain of chunks of <b>chunkSize</b> bytes
+ * leased from a {@link BufferPool}, grown one chunk at a time up to
+ * <b>maxSize</b> bytes.
+ * Bytes are appended to the last chunk and consumed from the first one.
+ * Chunks fully consumed go back to the pool, so a connection holds only the
+ * chunks its unread bytes need, and none once every byte is consumed: an
+ * idle keep-alive connection holds no buffer.
+ * <p>
+ * Indexes are relative to the first unread byte. Not thread safe, used by the
+ * thread handling the stream.
+ * </p>
+ */
+class ChainedBuffer {
+
+	private final BufferPool pool;
+	private final int chunkSize;
+	private final int maxSize;
+	/**
+	 * Chunks in write mode, the position is the end of their bytes.
+	 */
+	private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+	/**
+	 * First unread byte in the first chunk.
+	 */
+	private int head;
+	/**
+	 * Unread bytes.
+	 */
+	private int size;
+
+	ChainedBuffer(BufferPool pool, int chunkSize, int maxSize) {
+		this.pool = pool;
+		this.chunkSize = chunkSize;
+		this.maxSize = maxSize;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Bytes of the chunks held, read or not.
+	 *
+	 * @return
+	 */
+	long capacity() {
+		long capacity = 0;
+		for (ByteBuffer chunk : chunks)
+			capacity += chunk.capacity();
+		return capacity;
+	}
+
+	/**
+	 * True if no more bytes can be read before some are consumed.
+	 *
+	 * @return
+	 */
+	boolean isFull() {
+		return size >= maxSize;
+	}
+
+	/**
+	 * Reads from the channel while it fills the chunks, adding chunks as
+	 * needed and allowed by the maximum size.
+	 *
+	 * @param channel
+	 * @return bytes read, or -1 if the channel reached end of stream before
+	 *         any byte was read
+	 * @throws IOException
+	 */
+	int readFrom(ReadableByteChannel channel) throws IOException {
+		int total = 0;
+		while (true) {
+			ByteBuffer tail = writableTail();
+			if (tail == null)
+				break;
+			int read = channel.read(tail);
+			if (read == -1) {
+				if (size == 0)
+					release();
+				return total == 0 ? -1 : total;
+			}
+			size += read;
+			total += read;
+			if (tail.hasRemaining())
+				break;
+		}
+		if (size == 0)
+			release();
+		return total;
+	}
+
+	/**
+	 * The last chunk if it has room, a new one if the maximum size allows, or
+	 * null.
+	 *
+	 * @return
+	 */
+	private ByteBuffer writableTail() {
+		ByteBuffer tail = chunks.peekLast();
+		if (tail != null && tail.hasRemaining())
+			return tail;
+		int room = maxSize - size;
+		if (room <= 0)
+			return null;
+		ByteBuffer chunk = pool.acquire(Math.min(chunkSize, room));
+		chunks.addLast(chunk);
+		return chunk;
+	}
+
+	/**
+	 * The unread byte at the given index.
+	 *
+	 * @param index
+	 * @return
+	 */
+	byte get(int index) {
+		int offset = head + index;
+		for (ByteBuffer chunk : chunks) {
+			if (offset < chunk.position())
+				return chunk.get(offset);
+			offset -= chunk.position();
+		}
+		throw new IndexOutOfBoundsException(String.valueOf(index));
+	}
+
+	/**
+	 * Searches the pattern in the unread bytes, starting at <b>from</b>.
+	 *
+	 * @param pattern
+	 * @param from
+	 * @return index of the first byte of the pattern, or -1
+	 */
+	int indexOf(byte[] pattern, int from) {
+		if (from < 0)
+			from = 0;
+		int last = size - pattern.length;
+		if (from > last)
+			return -1;
+		byte first = pattern[0];
+		int index = 0;
+		int start = head;
+		for (ByteBuffer chunk : chunks) {
+			int end = chunk.position();
+			int count = end - start;
+			if (index + count <= from) {
+				index += count;
+				start = 0;
+				continue;
+			}
+			for (int i = start + Math.max(0, from - index); i < end; i++) {
+				int at = index + i - start;
+				if (at > last)
+					return -1;
+				if (chunk.get(i) != first)
+					continue;
+				int j = 1;
+				if (i + pattern.length <= end) {
+					while (j < pattern.length
+							&& chunk.get(i + j) == pattern[j])
+						j++;
+				} else {
+					// the pattern may continue in the next chunks.
+					while (j < pattern.length && get(at + j) == pattern[j])
+						j++;
+				}
+				if (j == pattern.length)
+					return at;
+			}
+			index += count;
+			start = 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * Hands the unread bytes from <b>from</b> on to the scanner, chunk by
+	 * chunk, until it finds the end of its message.
+	 *
+	 * @param scanner
+	 * @param from
+	 * @return index after the end of the message, or -1
+	 */
+	int scan(IOStream.Scanner scanner, int from) {
+		int index = 0;
+		int start = head;
+		for (ByteBuffer chunk : chunks) {
+			int end = chunk.position();
+			int count = end - start;
+			if (index + count > from) {
+				int skip = Math.max(0, from - index);
+				int found = scanner.scan(chunk, start + skip, end);
+				if (found != -1)
+					return index + found - start;
+			}
+			index += count;
+			start = 0;
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes the first <b>length</b> unread bytes and consumes them.
+	 *
+	 * @param length
+	 * @param charset
+	 * @return
+	 */
+	String consume(int length, Charset charset) {
+		ByteBuffer first = chunks.peekFirst();
+		String data;
+		if (length == 0) {
+			data = "";
+		} else if (first.hasArray() && head + length <= first.position()) {
+			data = new String(first.array(), first.arrayOffset() + head,
+					length, charset);
+		} else {
+			data = new String(copy(length), charset);
+		}
+		skip(length);
+		return data;
+	}
+
+	/**
+	 * Copies the first <b>length</b> unread bytes to a heap buffer and
+	 * consumes them.
+	 *
+	 * @param length
+	 * @return
+	 */
+	ByteBuffer consume(int length) {
+		ByteBuffer data = ByteBuffer.wrap(copy(length));
+		skip(length);
+		return data;
+	}
+
+	/**
+	 * Moves unread bytes to the buffer, as many as it has room for.
+	 *
+	 * @param buffer
+	 * @return bytes moved
+	 */
+	int transferTo(ByteBuffer buffer) {
+		int length = Math.min(size, buffer.remaining());
+		int moved = 0;
+		int start = head;
+		Iterator<ByteBuffer> it = chunks.iterator();
+		while (moved < length) {
+			ByteBuffer chunk = it.next().duplicate();
+			int count = Math.min(chunk.position() - start, length - moved);
+			chunk.limit(start + count);
+			chunk.position(start);
+			buffer.put(chunk);
+			moved += count;
+			start = 0;
+		}
+		skip(length);
+		return length;
+	}
+
+	/**
+	 * Writes up to <b>max</b> unread bytes to the channel, straight from the
+	 * chunks. The channel must be blocking, a file for instance.
+	 *
+	 * @param channel
+	 * @param max
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	long transferTo(WritableByteChannel channel, long max) throws IOException {
+		int length = (int) Math.min(size, max);
+		int written = 0;
+		int start = head;
+		Iterator<ByteBuffer> it = chunks.iterator();
+		while (written < length) {
+			ByteBuffer chunk = it.next().duplicate();
+			int count = Math.min(chunk.position() - start, length - written);
+			chunk.limit(start + count);
+			chunk.position(start);
+			while (chunk.hasRemaining())
+				channel.write(chunk);
+			written += count;
+			start = 0;
+		}
+		skip(length);
+		return length;
+	}
+
+	/**
+	 * Copies the first <b>length</b> unread bytes, without consuming them.
+	 *
+	 * @param length
+	 * @return
+	 */
+	private byte[] copy(int length) {
+		byte[] bytes = new byte[length];
+		int copied = 0;
+		int start = head;
+		Iterator<ByteBuffer> it = chunks.iterator();
+		while (copied < length) {
+			ByteBuffer chunk = it.next().duplicate();
+			int count = Math.min(chunk.position() - start, length - copied);
+			chunk.limit(start + count);
+			chunk.position(start);
+			chunk.get(bytes, copied, count);
+			copied += count;
+			start = 0;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Consumes <b>length</b> bytes, giving back to the pool the chunks left
+	 * empty. Once every byte is consumed no chunk is kept, the next read
+	 * leases one again, from the cache of the thread most of the time.
+	 *
+	 * @param length
+	 */
+	void skip(int length) {
+		size -= length;
+		head += length;
+		if (size == 0) {
+			release();
+			return;
+		}
+		while (chunks.size() > 1 && head >= chunks.peekFirst().position()) {
+			head -= chunks.peekFirst().position();
+			pool.release(chunks.pollFirst());
+		}
+	}
+
+	/**
+	 * Gives every chunk back to the pool.
+	 */
+	void release() {
+		ByteBuffer chunk;
+		while ((chunk = chunks.pollFirst()) != null)
+			pool.release(chunk);
+		head = 0;
+		size = 0;
+	}
+}
@@ -0,0 +1,332 @@
+package org.jtornadoweb;
+
+import java.nio.ByteBuffer;
+
+import org.jtornadoweb.HttpServer.HttpHeaders;
+import org.jtornadoweb.IOStream.BufferHandler;
+
+/**
+ * Incremental decoder of a request body sent with Transfer-Encoding: chunked
+ * (RFC 7230, section 4.1), reading from an {@link IOStream}. Each chunk-size
+ * line is scanned where it was read, then the data of the chunk is handed
+ * as it arrives, at most <b>maxBytes</b> at a time, so nothing holds more
+ * than a read of the encoded body. The trailer section is parsed by an
+ * {@link HttpParser} and handed at the end.
+ * <p>
+ * A chunk larger than <b>maxChunkSize</b> or a body larger than
+ * <b>maxBodySize</b> ends it with status 413, trailers larger than
+ * <b>maxTrailerSize</b> with 431 and malformed bytes with 400, see
+ * {@link Handler#onError(int, String)}. Chunk extensions are skipped.
+ * </p>
+ * One instance per body. Used from the thread handling the stream only.
+ */
+public class ChunkedDecoder implements IOStream.Scanner {
+
+	/**
+	 * Receives the decoded body.
+	 */
+	public static interface Handler {
+
+		/**
+		 * Decoded bytes of the body, a copy the handler may keep. Nothing
+		 * more is read until the next call to
+		 * {@link ChunkedDecoder#read(int, Handler)}.
+		 *
+		 * @param data
+		 * @throws Exception
+		 */
+		public void onData(ByteBuffer data) throws Exception;
+
+		/**
+		 * The last chunk and the trailers were read.
+		 *
+		 * @param trailers
+		 *            empty if none.
+		 * @throws Exception
+		 */
+		public void onEnd(HttpHeaders trailers) throws Exception;
+
+		/**
+		 * The body is malformed or too large, the rest of the connection
+		 * can't be trusted.
+		 *
+		 * @param status
+		 *            to reply with.
+		 * @param reason
+		 * @throws Exception
+		 */
+		public void onError(int status, String reason) throws Exception;
+	}
+
+	/**
+	 * Bytes of a chunk-size line, extensions and line ending included.
+	 */
+	public static final int MAX_SIZE_LINE = 4096;
+
+	public static final long DEFAULT_MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Same as Tornado's max_body_size.
+	 */
+	public static final long DEFAULT_MAX_BODY_SIZE = 100 * 1024 * 1024;
+
+	private static final int DATA_CR = 0;
+	private static final int DATA_LF = 1;
+	private static final int SIZE_START = 2;
+	private static final int SIZE = 3;
+	private static final int BWS = 4;
+	private static final int EXTENSION = 5;
+	private static final int LINE_LF = 6;
+	private static final int DONE = 7;
+	private static final int TRAILERS = 8;
+	private static final int END = 9;
+	private static final int ERROR = 10;
+
+	private final IOStream stream;
+	private final long maxChunkSize;
+	private final long maxBodySize;
+	private final HttpParser trailerParser;
+
+	private int state = SIZE_START;
+	private int lineLength;
+	private long size;
+	private long chunkRemaining;
+	private long length;
+	private int errorStatus;
+	private String error;
+
+	private int maxBytes;
+	private Handler handler;
+	private boolean reading;
+	private boolean readAgain;
+
+	private final BufferHandler onSizeLine = new BufferHandler() {
+
+		@Override
+		public void execute(ByteBuffer data) throws Exception {
+			onSizeLine();
+		}
+	};
+
+	private final BufferHandler onData = new BufferHandler() {
+
+		@Override
+		public void execute(ByteBuffer data) throws Exception {
+			chunkRemaining -= data.remaining();
+			length += data.remaining();
+			if (chunkRemaining == 0)
+				state = DATA_CR;
+			handler.onData(data);
+		}
+	};
+
+	private final BufferHandler onTrailers = new BufferHandler() {
+
+		@Override
+		public void execute(ByteBuffer data) throws Exception {
+			if (!trailerParser.isComplete()) {
+				state = ERROR;
+				handler.onError(trailerParser.getErrorStatus(), trailerParser
+						.getError());
+				return;
+			}
+			state = END;
+			handler.onEnd(trailerParser.getHeaderCount() == 0 ? new HttpHeaders()
+					: HttpHeaders.parse(data, trailerParser));
+		}
+	};
+
+	public ChunkedDecoder(IOStream stream) {
+		this(stream, DEFAULT_MAX_CHUNK_SIZE, DEFAULT_MAX_BODY_SIZE,
+				HttpParser.DEFAULT_MAX_HEADER_SIZE);
+	}
+
+	/**
+	 * @param stream
+	 * @param maxChunkSize
+	 *            bytes of a chunk.
+	 * @param maxBodySize
+	 *            decoded bytes of the whole body.
+	 * @param maxTrailerSize
+	 *            bytes of the trailer section.
+	 */
+	public ChunkedDecoder(IOStream stream, long maxChunkSize,
+			long maxBodySize, int maxTrailerSize) {
+		this.stream = stream;
+		this.maxChunkSize = maxChunkSize;
+		this.maxBodySize = maxBodySize;
+		this.trailerParser = new HttpParser(maxTrailerSize, maxTrailerSize);
+	}
+
+	/**
+	 * Reads the next decoded bytes of the body, at most <b>maxBytes</b>, and
+	 * hands them to {@link Handler#onData(ByteBuffer)}, or calls
+	 * {@link Handler#onEnd(HttpHeaders)} if the body ended. Reads asked from
+	 * the handler go on once it returns, looping here instead of nesting a
+	 * call per chunk.
+	 *
+	 * @param maxBytes
+	 * @param handler
+	 * @throws Exception
+	 */
+	public void read(int maxBytes, Handler handler) throws Exception {
+		if (state == END || state == ERROR)
+			throw new IllegalStateException("Read after the end of the body");
+		this.maxBytes = maxBytes;
+		this.handler = handler;
+		next();
+	}
+
+	private void next() throws Exception {
+		if (reading) {
+			readAgain = true;
+			return;
+		}
+		reading = true;
+		try {
+			do {
+				readAgain = false;
+				if (chunkRemaining > 0)
+					stream.readChunk((int) Math.min(maxBytes, chunkRemaining),
+							onData);
+				else if (state == TRAILERS) {
+					trailerParser.resetTrailers();
+					stream.readUntil(trailerParser, onTrailers);
+				} else {
+					lineLength = 0;
+					stream.readUntil(this, onSizeLine);
+				}
+			} while (readAgain);
+		} finally {
+			reading = false;
+		}
+	}
+
+	private void onSizeLine() throws Exception {
+		if (state == ERROR) {
+			handler.onError(errorStatus, error);
+			return;
+		}
+		if (size == 0) {
+			state = TRAILERS;
+			next();
+			return;
+		}
+		if (length + size > maxBodySize) {
+			state = ERROR;
+			handler.onError(413, "Chunked body too large");
+			return;
+		}
+		chunkRemaining = size;
+		next();
+	}
+
+	/**
+	 * Scans a chunk-size line, after the line ending of the data before it.
+	 */
+	@Override
+	@SuppressWarnings("fallthrough")
+	public int scan(ByteBuffer buffer, int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buffer.get(i);
+			if (++lineLength > MAX_SIZE_LINE)
+				return fail(i, 400, "Chunk-size line too long");
+			switch (state) {
+			case DATA_CR:
+				if (b == '\r')
+					state = DATA_LF;
+				else if (b == '\n')
+					state = SIZE_START;
+				else
+					return fail(i, 400, "Missing line ending after chunk data");
+				break;
+			case DATA_LF:
+				if (b != '\n')
+					return fail(i, 400, "Missing line ending after chunk data");
+				state = SIZE_START;
+				break;
+			case SIZE_START:
+				if (hex(b) == -1)
+					return fail(i, 400, "Malformed chunk size");
+				size = hex(b);
+				state = SIZE;
+				break;
+			case SIZE:
+				if (hex(b) != -1) {
+					size = size * 16 + hex(b);
+					if (size > maxChunkSize)
+						return fail(i, 413, "Chunk too large");
+					break;
+				}
+				// fall through: the end of the size.
+			case BWS:
+				if (b == ' ' || b == '\t')
+					state = BWS;
+				else if (b == ';')
+					state = EXTENSION;
+				else if (b == '\r')
+					state = LINE_LF;
+				else if (b == '\n')
+					return done(i);
+				else
+					return fail(i, 400, "Malformed chunk size");
+				break;
+			case EXTENSION:
+				if (b == '\r')
+					state = LINE_LF;
+				else if (b == '\n')
+					return done(i);
+				else if (b >= 0 && b < ' ' && b != '\t' || b == 0x7f)
+					return fail(i, 400, "Malformed chunk extension");
+				break;
+			case LINE_LF:
+				if (b != '\n')
+					return fail(i, 400, "Malformed chunk-size line");
+				return done(i);
+			default:
+				throw new IllegalStateException("Scan after the chunk-size line");
+			}
+		}
+		return -1;
+	}
+
+	private static int hex(byte b) {
+		if (b >= '0' && b <= '9')
+			return b - '0';
+		if (b >= 'a' && b <= 'f')
+			return b - 'a' + 10;
+		if (b >= 'A' && b <= 'F')
+			return b - 'A' + 10;
+		return -1;
+	}
+
+	private int done(int i) {
+		state = DONE;
+		return i + 1;
+	}
+
+	private int fail(int i, int status, String error) {
+		state = ERROR;
+		errorStatus = status;
+		this.error = error;
+		return i + 1;
+	}
+
+	/**
+	 * True once the last chunk and the trailers were read.
+	 *
+	 * @return
+	 */
+	public boolean isDone() {
+		return state == END;
+	}
+
+	/**
+	 * Decoded bytes handed so far.
+	 *
+	 * @return
+	 */
+	public long getLength() {
+		return length;
+	}
+}
@@ -0,0 +1,99 @@
+package org.jtornadoweb;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controlled Delay admission for the handler executor. Instead of the length
+ * of the queue, it looks at how long tasks waited in it. Tasks report their
+ * queueing delay when they are dequeued. If the smallest delay seen during an
+ * <b>interval</b> is above the <b>target</b>, the queue is not just absorbing
+ * a burst, it is standing, and the executor is considered overloaded until an
+ * interval ends with a delay under the target again. While overloaded, new
+ * requests are shed with 503 instead of waiting for an answer the client
+ * gave up on.
+ * <p>
+ * Thread safe, delays are reported by the pool threads.
+ * </p>
+ *
+ * <pre>
+ * server.setCoDel(new CoDel(50, 500));
+ * </pre>
+ */
+public class CoDel {
+
+	private final long target;
+	private final long interval;
+
+	private final AtomicLong intervalStart;
+	private final AtomicLong minDelay = new AtomicLong(Long.MAX_VALUE);
+	private volatile boolean overloaded;
+
+	private final AtomicLong shed = new AtomicLong();
+
+	/**
+	 * @param targetMillis
+	 *            acceptable queueing delay.
+	 * @param intervalMillis
+	 *            time the delay must stay above the target to shed requests.
+	 */
+	public CoDel(long targetMillis, long intervalMillis) {
+		this.target = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+		this.interval = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.intervalStart = new AtomicLong(nanoTime());
+	}
+
+	/**
+	 * Reports the time a task waited in the queue.
+	 *
+	 * @param delayNanos
+	 */
+	public void onDequeue(long delayNanos) {
+		long min;
+		while (delayNanos < (min = minDelay.get())
+				&& !minDelay.compareAndSet(min, delayNanos))
+			;
+		long now = nanoTime();
+		long start = intervalStart.get();
+		if (now - start >= interval && intervalStart.compareAndSet(start, now)) {
+			min = minDelay.getAndSet(Long.MAX_VALUE);
+			overloaded = min != Long.MAX_VALUE && min > target;
+		}
+	}
+
+	/**
+	 * True while requests should be shed. An interval without any task
+	 * dequeued means the queue drained, so it is no longer overloaded.
+	 *
+	 * @return
+	 */
+	public boolean isOverloaded() {
+		return overloaded
+				&& nanoTime() - intervalStart.get() < 2 * interval;
+	}
+
+	/**
+	 * The clock, System.nanoTime(). Overridden by tests.
+	 *
+	 * @return
+	 */
+	protected long nanoTime() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Counts a request shed because of {@link #isOverloaded()}.
+	 */
+	void shed() {
+		shed.incrementAndGet();
+	}
+
+	/**
+	 * Number of requests shed so far.
+	 *
+	 * @return
+	 */
+	public long getShedCount() {
+		return shed.get();
+	}
+}
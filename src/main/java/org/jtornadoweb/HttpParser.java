@@ -0,0 +1,397 @@
+package org.jtornadoweb;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Incremental parser of an HTTP/1.x request line and headers (RFC 7230,
+ * section 3). A state machine fed byte by byte where the bytes were read, by
+ * {@link IOStream#readUntil(IOStream.Scanner, IOStream.BufferHandler)}, that
+ * stops wherever the bytes end and goes on with the next read. It creates no
+ * String nor array while scanning: it only records the offsets of the
+ * method, uri, version and of each header name and value from the first byte
+ * of the request. Once complete, the accessors decode them from the bytes of
+ * the request.
+ * <p>
+ * Leading empty lines are skipped. Lines may end in CRLF or a bare LF. A
+ * request line longer than <b>maxRequestLineSize</b> ends it with status
+ * 414, a head longer than <b>maxHeaderSize</b> with 431 and malformed bytes
+ * with 400; see {@link #getErrorStatus()}. Obsolete line folding and
+ * whitespace before the colon are rejected, whitespace around values is
+ * trimmed, and values keep their colons.
+ * </p>
+ * One instance per connection, reused with {@link #reset()}. Not thread
+ * safe.
+ */
+public class HttpParser implements IOStream.Scanner {
+
+	public static final int DEFAULT_MAX_REQUEST_LINE_SIZE = 8192;
+
+	/**
+	 * Same as Tornado's max_header_size.
+	 */
+	public static final int DEFAULT_MAX_HEADER_SIZE = 65536;
+
+	private static final int START = 0;
+	private static final int METHOD = 1;
+	private static final int URI = 2;
+	private static final int VERSION = 3;
+	private static final int LINE_LF = 4;
+	private static final int HEADER = 5;
+	private static final int NAME = 6;
+	private static final int OWS = 7;
+	private static final int VALUE = 8;
+	private static final int HEADER_LF = 9;
+	private static final int END_LF = 10;
+	private static final int DONE = 11;
+	private static final int ERROR = 12;
+
+	private static final byte CR = '\r';
+	private static final byte LF = '\n';
+	private static final byte SP = ' ';
+	private static final byte HT = '\t';
+
+	private static final byte[] HTTP = "HTTP/".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * tchar of RFC 7230, section 3.2.6.
+	 */
+	private static final boolean[] TOKEN = new boolean[128];
+
+	static {
+		for (int c = '0'; c <= '9'; c++)
+			TOKEN[c] = true;
+		for (int c = 'a'; c <= 'z'; c++)
+			TOKEN[c] = true;
+		for (int c = 'A'; c <= 'Z'; c++)
+			TOKEN[c] = true;
+		for (char c : "!#$%&'*+-.^_`|~".toCharArray())
+			TOKEN[c] = true;
+	}
+
+	private static final String[] METHODS = { "GET", "POST", "PUT", "DELETE",
+			"HEAD", "OPTIONS", "PATCH" };
+
+	private final int maxRequestLineSize;
+	private final int maxHeaderSize;
+
+	private int state;
+	/**
+	 * Offset of the next byte from the first one of the request.
+	 */
+	private int pos;
+	private int methodStart;
+	private int methodEnd;
+	private int uriStart;
+	private int uriEnd;
+	private int versionStart;
+	private int versionMajor;
+	private int versionMinor;
+	/**
+	 * Start and end of the name, start and end of the value, of each header.
+	 * Handed to the {@link HttpServer.HttpHeaders} of the request, a new one
+	 * is allocated for the next.
+	 */
+	private int[] headers;
+	private int headerCount;
+	private int nameStart;
+	private int nameEnd;
+	private int valueStart;
+	private int valueEnd;
+	private int errorStatus;
+	private String error;
+
+	public HttpParser() {
+		this(DEFAULT_MAX_REQUEST_LINE_SIZE, DEFAULT_MAX_HEADER_SIZE);
+	}
+
+	/**
+	 * @param maxRequestLineSize
+	 *            bytes of the request line, line ending included.
+	 * @param maxHeaderSize
+	 *            bytes of the request line and headers, up to the empty line
+	 *            included.
+	 */
+	public HttpParser(int maxRequestLineSize, int maxHeaderSize) {
+		this.maxRequestLineSize = maxRequestLineSize;
+		this.maxHeaderSize = maxHeaderSize;
+	}
+
+	/**
+	 * Gets ready for the next request.
+	 */
+	public void reset() {
+		state = START;
+		pos = 0;
+		headerCount = 0;
+		errorStatus = 0;
+		error = null;
+	}
+
+	/**
+	 * Gets ready for the trailer section of a chunked body: header lines up
+	 * to an empty line, with no request line. Their size is bound by
+	 * <b>maxHeaderSize</b>.
+	 */
+	public void resetTrailers() {
+		reset();
+		state = HEADER;
+	}
+
+	@Override
+	@SuppressWarnings("fallthrough")
+	public int scan(ByteBuffer buffer, int start, int end) {
+		for (int i = start; i < end; i++) {
+			byte b = buffer.get(i);
+			int at = pos++;
+			if (pos > maxHeaderSize)
+				return fail(i, 431, "Request headers too large");
+			switch (state) {
+			case START:
+				if (b == CR || b == LF)
+					break;
+				if (!isToken(b))
+					return fail(i, 400, "Malformed HTTP method");
+				methodStart = at;
+				state = METHOD;
+				break;
+			case METHOD:
+				if (b == SP) {
+					methodEnd = at;
+					uriStart = at + 1;
+					state = URI;
+				} else if (!isToken(b))
+					return fail(i, 400, "Malformed HTTP method");
+				break;
+			case URI:
+				if (b == SP) {
+					if (at == uriStart)
+						return fail(i, 400, "Empty request target");
+					uriEnd = at;
+					versionStart = at + 1;
+					state = VERSION;
+				} else if (b >= 0 && b < SP || b == 0x7f)
+					return fail(i, 400, "Malformed request target");
+				break;
+			case VERSION:
+				if (b == CR || b == LF) {
+					if (at - versionStart != 8)
+						return fail(i, 400,
+								"Malformed HTTP version in HTTP Request-Line");
+					state = b == CR ? LINE_LF : HEADER;
+				} else if (!versionByte(at - versionStart, b))
+					return fail(i, 400,
+							"Malformed HTTP version in HTTP Request-Line");
+				break;
+			case LINE_LF:
+				if (b != LF)
+					return fail(i, 400, "Malformed HTTP Request-Line");
+				state = HEADER;
+				break;
+			case HEADER:
+				if (b == CR)
+					state = END_LF;
+				else if (b == LF)
+					return done(i);
+				else if (!isToken(b))
+					return fail(i, 400, "Malformed header name");
+				else {
+					nameStart = at;
+					state = NAME;
+				}
+				break;
+			case NAME:
+				if (b == ':') {
+					nameEnd = at;
+					state = OWS;
+				} else if (!isToken(b))
+					return fail(i, 400, "Malformed header name");
+				break;
+			case OWS:
+				if (b == SP || b == HT)
+					break;
+				valueStart = at;
+				valueEnd = at;
+				state = VALUE;
+				// fall through: the first byte of the value, or the end of an
+				// empty one.
+			case VALUE:
+				if (b == CR || b == LF) {
+					addHeader();
+					state = b == CR ? HEADER_LF : HEADER;
+				} else if (b >= 0 && b < SP && b != HT || b == 0x7f)
+					return fail(i, 400, "Malformed header value");
+				else if (b != SP && b != HT)
+					valueEnd = at + 1;
+				break;
+			case HEADER_LF:
+				if (b != LF)
+					return fail(i, 400, "Malformed header line");
+				state = HEADER;
+				break;
+			case END_LF:
+				if (b != LF)
+					return fail(i, 400, "Malformed end of headers");
+				return done(i);
+			default:
+				throw new IllegalStateException("Scan after the end of the request");
+			}
+			if (state < HEADER && pos > maxRequestLineSize)
+				return fail(i, 414, "Request-Line too long");
+		}
+		return -1;
+	}
+
+	private static boolean isToken(byte b) {
+		return b > 0 && TOKEN[b];
+	}
+
+	/**
+	 * Checks a byte of HTTP/x.y, keeping x and y.
+	 */
+	private boolean versionByte(int index, byte b) {
+		if (index < HTTP.length)
+			return b == HTTP[index];
+		if (index == 6)
+			return b == '.';
+		if (index > 7 || b < '0' || b > '9')
+			return false;
+		if (index == 5)
+			versionMajor = b - '0';
+		else
+			versionMinor = b - '0';
+		return true;
+	}
+
+	private void addHeader() {
+		int index = headerCount * 4;
+		if (headers == null)
+			headers = new int[64];
+		else if (index == headers.length)
+			headers = Arrays.copyOf(headers, headers.length * 2);
+		headers[index] = nameStart;
+		headers[index + 1] = nameEnd;
+		headers[index + 2] = valueStart;
+		headers[index + 3] = valueEnd;
+		headerCount++;
+	}
+
+	private int done(int i) {
+		state = DONE;
+		return i + 1;
+	}
+
+	private int fail(int i, int status, String error) {
+		state = ERROR;
+		errorStatus = status;
+		this.error = error;
+		return i + 1;
+	}
+
+	/**
+	 * True once the empty line ending the headers was scanned.
+	 *
+	 * @return
+	 */
+	public boolean isComplete() {
+		return state == DONE;
+	}
+
+	/**
+	 * Status to reply with if the request was rejected, 0 otherwise.
+	 *
+	 * @return
+	 */
+	public int getErrorStatus() {
+		return errorStatus;
+	}
+
+	/**
+	 * Why the request was rejected, or null.
+	 *
+	 * @return
+	 */
+	public String getError() {
+		return error;
+	}
+
+	/**
+	 * The method, the same String instance for the common ones.
+	 *
+	 * @param head
+	 *            the bytes of the request, from the first one.
+	 * @return
+	 */
+	public String getMethod(ByteBuffer head) {
+		for (String method : METHODS) {
+			if (equals(head, methodStart, methodEnd, method))
+				return method;
+		}
+		return decode(head, methodStart, methodEnd);
+	}
+
+	public String getUri(ByteBuffer head) {
+		return decode(head, uriStart, uriEnd);
+	}
+
+	public String getVersion(ByteBuffer head) {
+		if (versionMajor == 1 && versionMinor == 1)
+			return "HTTP/1.1";
+		if (versionMajor == 1 && versionMinor == 0)
+			return "HTTP/1.0";
+		return decode(head, versionStart, versionStart + 8);
+	}
+
+	public int getVersionMajor() {
+		return versionMajor;
+	}
+
+	public int getVersionMinor() {
+		return versionMinor;
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	public String getHeaderName(ByteBuffer head, int index) {
+		return decode(head, headers[index * 4], headers[index * 4 + 1]);
+	}
+
+	public String getHeaderValue(ByteBuffer head, int index) {
+		return decode(head, headers[index * 4 + 2], headers[index * 4 + 3]);
+	}
+
+	/**
+	 * Start and end of the name, start and end of the value, of each header,
+	 * or null if none. The caller keeps them, the parser no longer uses the
+	 * array.
+	 *
+	 * @return
+	 */
+	int[] takeHeaderOffsets() {
+		int[] offsets = headers;
+		headers = null;
+		return offsets;
+	}
+
+	private static boolean equals(ByteBuffer head, int start, int end,
+			String value) {
+		if (end - start != value.length())
+			return false;
+		for (int i = 0; i < value.length(); i++) {
+			if (head.get(head.position() + start + i) != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Headers are ISO-8859-1 (RFC 7230, section 3.2.4).
+	 */
+	static String decode(ByteBuffer head, int start, int end) {
+		return new String(head.array(), head.arrayOffset() + head.position()
+				+ start, end - start, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -1,27 +1,46 @@
 package org.jtornadoweb;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.jtornadoweb.IOLoop.EventHandlerAdapter;
+import org.jtornadoweb.IOStream.BufferHandler;
 import org.jtornadoweb.IOStream.StreamHandler;
+import org.jtornadoweb.Web.HttpCode;
 import org.jtornadoweb.Web.RequestCallback;
+import org.jtornadoweb.Web.StreamingRequestCallback;
 import org.jtornadoweb.util.CollectionUtils;
 import org.jtornadoweb.util.HttpUtils;
 import org.jtornadoweb.util.StringUtils;
@@ -43,22 +62,195 @@ import org.jtornadoweb.util.StringUtils;
  * Each HttpConnection uses a thread available in the pool. The Http Server
  * accepts connections in the main thread.
  * </p>
+ * <p>
+ * With {@link ExecutionMode#LOOP} the HTTP parsing also runs in the loop
+ * threads and only the application is executed in the pool, or in virtual
+ * threads with {@link ExecutionMode#VIRTUAL}.
+ * </p>
+ * <p>
+ * In multi-reactor mode ({@link #setMultiReactor(boolean)}) the main thread
+ * only accepts. Accepted connections are handed round-robin to a set of
+ * IOLoops, each one selecting in its own thread.
+ * </p>
  * 
  * 
  * @author paulosuzart@gmail.com
  * 
  */
 public class HttpServer extends EventHandlerAdapter {
+
+	/**
+	 * What to do with new connections while the server is overloaded, see
+	 * {@link HttpServer#setMaxConnections(int)} and
+	 * {@link HttpServer#setMaxQueuedTasks(int)}.
+	 */
+	public static enum OverloadPolicy {
+		/**
+		 * Stops accepting, the connections wait in the backlog of the server
+		 * channel until the load goes down. The default.
+		 */
+		PAUSE_ACCEPT,
+		/**
+		 * Accepts, replies 503 and closes the connection.
+		 */
+		REJECT
+	}
+
+	/**
+	 * Sent to connections rejected by {@link OverloadPolicy#REJECT}.
+	 */
+	private static final byte[] SERVICE_UNAVAILABLE_BYTES = ("HTTP/1.1 503 Service Unavailable\r\n"
+			+ "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes();
+
+	private static final byte[] CONTINUE_BYTES = "HTTP/1.1 100 (Continue)\r\n\r\n"
+			.getBytes();
+
+	private static final ByteBuffer SERVICE_UNAVAILABLE = ByteBuffer.wrap(
+			SERVICE_UNAVAILABLE_BYTES).asReadOnlyBuffer();
+
+	/**
+	 * Milliseconds between checks of the load while accepting is paused.
+	 */
+	public static int ACCEPT_PAUSE_CHECK = 20;
+
+	/**
+	 * Platform threads running the handlers in {@link ExecutionMode#VIRTUAL}
+	 * when the JVM has no virtual threads. Bounded, blocking handlers must
+	 * not create a thread per request.
+	 */
+	public static int VIRTUAL_FALLBACK_THREADS = 200;
+
+	/**
+	 * False if {@link ExecutionMode#VIRTUAL} falls back to
+	 * {@link #VIRTUAL_FALLBACK_THREADS} platform threads.
+	 * 
+	 * @return
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return JTornadoThreadFactory.isVirtualSupported();
+	}
+
+	/**
+	 * Where the work of a connection is executed.
+	 */
+	public static enum ExecutionMode {
+		/**
+		 * Every read and write event is handled in a thread of the pool,
+		 * including the application. The default.
+		 */
+		POOL,
+		/**
+		 * IOStream reads and writes and the HTTP parsing run in the loop
+		 * thread. Only the {@link RequestCallback} is executed in the pool.
+		 */
+		LOOP,
+		/**
+		 * Same as LOOP, but each {@link RequestCallback} runs in a new
+		 * virtual thread, so handlers may block (JDBC, files, sleep) without
+		 * holding a pool thread. Loop threads stay platform threads. Before
+		 * Java 21 handlers run in a fixed pool of
+		 * {@link HttpServer#VIRTUAL_FALLBACK_THREADS} platform threads
+		 * instead, with a warning: blocking handlers then wait for one of
+		 * them.
+		 */
+		VIRTUAL
+	}
+
 	private final Logger logger = Logger
 			.getLogger("org.jtornadoweb.HttpServer");
 
 	private final RequestCallback requestCallback;
 	private final boolean noKeepAlive;
 	private final boolean xHeaders;
-	private ServerSocketChannel serverSocketChannel;
+	private final List<ServerSocketChannel> serverSocketChannels = new ArrayList<ServerSocketChannel>();
 	private final ExecutorService pool;
 
-	private final IOLoop loop;
+	private IOLoop loop;
+
+	private ExecutionMode executionMode = ExecutionMode.POOL;
+
+	/**
+	 * Executes the application in {@link ExecutionMode#VIRTUAL}.
+	 */
+	private Executor handlerExecutor;
+
+	private boolean multiReactor;
+
+	private int ioLoopCount = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * Loops serving accepted connections in multi-reactor mode.
+	 */
+	private final List<IOLoop> ioLoops = new ArrayList<IOLoop>();
+
+	private final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Number of server channels bound to the port, each one accepting in its
+	 * own IOLoop.
+	 */
+	private int acceptors = 1;
+
+	/**
+	 * Loops accepting connections, the first one runs in the thread calling
+	 * listen.
+	 */
+	private final List<IOLoop> acceptorLoops = new ArrayList<IOLoop>();
+
+	private int backlog = 128;
+
+	/**
+	 * Admission limits, 0 means unlimited.
+	 */
+	private int maxConnections;
+	private int maxQueuedTasks;
+	private OverloadPolicy overloadPolicy = OverloadPolicy.PAUSE_ACCEPT;
+
+	private final AtomicInteger openConnections = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong pauses = new AtomicLong();
+
+	/**
+	 * Sheds requests while the queueing delay stays above its target, may be
+	 * null.
+	 */
+	private CoDel codel;
+
+	/**
+	 * Publishes the metrics of the loops as MBeans.
+	 */
+	private boolean jmx;
+
+	/**
+	 * Shared by the connections, built by {@link #listen(int)}.
+	 */
+	private ConnectionParameters connectionParameters;
+
+	private final Runnable onClose = new Runnable() {
+
+		@Override
+		public void run() {
+			openConnections.decrementAndGet();
+		}
+	};
+
+	/**
+	 * Milliseconds a connection may stay idle, waiting for a request or for
+	 * the client to take the response. Same default as Tornado.
+	 */
+	private long idleTimeout = 3600 * 1000;
+	/**
+	 * Milliseconds a client may take no bytes of a pending response, -1 for
+	 * the idle timeout.
+	 */
+	private long writeStallTimeout = -1;
+	private long bodySpillThreshold = ConnectionParameters.DEFAULT_BODY_SPILL_THRESHOLD;
+	private int maxRequestLineSize = HttpParser.DEFAULT_MAX_REQUEST_LINE_SIZE;
+	private int maxHeaderSize = HttpParser.DEFAULT_MAX_HEADER_SIZE;
+	private int maxPipelineDepth = ConnectionParameters.DEFAULT_MAX_PIPELINE_DEPTH;
+	private long maxChunkSize = ChunkedDecoder.DEFAULT_MAX_CHUNK_SIZE;
+	private long maxBodySize = ChunkedDecoder.DEFAULT_MAX_BODY_SIZE;
+	private boolean tcpNoDelay = true;
 
 	public HttpServer(RequestCallback requestCallback, boolean noKeepAlive,
 			IOLoop loop, boolean xHeaders) throws Exception {
@@ -71,100 +263,1118 @@ public class HttpServer extends EventHandlerAdapter {
 		logger.info("noKeepAlive: " + noKeepAlive);
 		this.noKeepAlive = noKeepAlive;
 		this.xHeaders = xHeaders;
-		this.serverSocketChannel = null;
 		logger.info("Thread poll fixed in "
 				+ Runtime.getRuntime().availableProcessors() + " threads");
 		this.pool = Executors.newFixedThreadPool(Runtime.getRuntime()
 				.availableProcessors() + 1, new JTornadoThreadFactory()) ;
 
-		this.loop = (loop == null ? new IOLoop(pool) : loop);
+		this.loop = loop;
 	}
 
 	/**
 	 * Binds the socket provided by the channel to a port. The backlog for the
-	 * bind is 128 connections just like in Tornado. Starts the IOLoop.
+	 * bind is 128 connections just like in Tornado, see
+	 * {@link #setBacklog(int)}. Starts the IOLoop.
+	 * <p>
+	 * With more than one acceptor ({@link #setAcceptors(int)}), one server
+	 * channel per acceptor is bound to the port with SO_REUSEPORT and the
+	 * kernel balances the incoming connections among them. Each channel
+	 * accepts in its own IOLoop, which also serves the connections unless in
+	 * multi-reactor mode.
+	 * </p>
 	 * 
 	 * @param port
 	 * @throws Exception
 	 */
 	public void listen(int port) throws Exception {
-		serverSocketChannel = ServerSocketChannel.open();
-		final ServerSocket socket = serverSocketChannel.socket();
-		socket.setReuseAddress(true);
-		socket.bind(new InetSocketAddress(port), 128);
-		this.getLoop().addHandler(serverSocketChannel, this,
-				SelectionKey.OP_ACCEPT);
+		if (executionMode == ExecutionMode.VIRTUAL && handlerExecutor == null)
+			handlerExecutor = newHandlerExecutor();
+		if (loop == null)
+			loop = new IOLoop(eventPool());
+		connectionParameters = new ConnectionParameters(
+				applicationExecutor(), codel, bodySpillThreshold,
+				maxRequestLineSize, maxHeaderSize, maxPipelineDepth,
+				maxChunkSize, maxBodySize);
+		int count = acceptors;
+		if (count > 1 && !supportsReusePort()) {
+			logger.warning("SO_REUSEPORT not supported, using one acceptor");
+			count = 1;
+		}
+		acceptorLoops.add(loop);
+		for (int i = 1; i < count; i++)
+			acceptorLoops.add(new IOLoop(eventPool()));
+		for (IOLoop acceptorLoop : acceptorLoops)
+			acceptorLoop.setCoDel(codel);
+		if (multiReactor) {
+			JTornadoThreadFactory factory = new JTornadoThreadFactory(
+					"JTornado IOLoop-");
+			logger.info("Multi-reactor with " + ioLoopCount + " IOLoops");
+			for (int i = 0; i < ioLoopCount; i++) {
+				IOLoop ioLoop = new IOLoop(eventPool());
+				ioLoop.setCoDel(codel);
+				ioLoops.add(ioLoop);
+				ioLoop.startInThread(factory);
+			}
+		}
+		for (IOLoop acceptorLoop : acceptorLoops) {
+			ServerSocketChannel serverSocketChannel = ServerSocketChannel
+					.open();
+			serverSocketChannel.setOption(StandardSocketOptions.SO_REUSEADDR,
+					true);
+			if (count > 1)
+				serverSocketChannel.setOption(
+						StandardSocketOptions.SO_REUSEPORT, true);
+			serverSocketChannel.bind(new InetSocketAddress(port), backlog);
+			serverSocketChannels.add(serverSocketChannel);
+			acceptorLoop.addHandler(serverSocketChannel, this,
+					SelectionKey.OP_ACCEPT);
+		}
+		if (jmx)
+			registerMBeans(port);
+		if (count > 1) {
+			logger.info(count + " acceptors bound with SO_REUSEPORT");
+			JTornadoThreadFactory factory = new JTornadoThreadFactory(
+					"JTornado Acceptor-");
+			for (IOLoop acceptorLoop : acceptorLoops.subList(1, count))
+				acceptorLoop.startInThread(factory);
+		}
 		this.getLoop().start();
 	}
 
+	/**
+	 * Registers the metrics of every loop as
+	 * org.jtornadoweb:type=IOLoop,name="port-acceptor-n" or
+	 * "port-ioloop-n".
+	 * 
+	 * @param port
+	 */
+	private void registerMBeans(int port) {
+		try {
+			for (int i = 0; i < acceptorLoops.size(); i++)
+				acceptorLoops.get(i).getMetrics().registerMBean(
+						port + "-acceptor-" + i);
+			for (int i = 0; i < ioLoops.size(); i++)
+				ioLoops.get(i).getMetrics().registerMBean(
+						port + "-ioloop-" + i);
+		} catch (Exception e) {
+			logger.warning("Unable to register IOLoop MBeans: " + e);
+		}
+	}
+
+	private static boolean supportsReusePort() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			return channel.supportedOptions().contains(
+					StandardSocketOptions.SO_REUSEPORT);
+		} finally {
+			channel.close();
+		}
+	}
+
 	private IOLoop getLoop() {
 		return this.loop;
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * org.jtornadoweb.IOLoop.EventHandlerAddapter#onAccept(java.nio.channels
-	 * .SelectableChannel)
-	 */
-	@Override
-	protected void onAccept(SelectableChannel channel) throws Exception {
-		IOStream stream = new IOStream((SocketChannel) channel, this.getLoop());
-		new HttpConnection(stream, ((SocketChannel) channel).socket()
-				.getInetAddress(), requestCallback, noKeepAlive, xHeaders);
-		this.getLoop().addHandler(serverSocketChannel, this, SelectionKey.OP_ACCEPT);
+	/**
+	 * Pool handling the IOLoop events, null if they are handled in the loop
+	 * thread.
+	 * 
+	 * @return
+	 */
+	private ExecutorService eventPool() {
+		return executionMode == ExecutionMode.POOL ? pool : null;
+	}
+
+	/**
+	 * Executor of the {@link RequestCallback}, null if it runs in the thread
+	 * handling the event.
+	 * 
+	 * @return
+	 */
+	private Executor applicationExecutor() {
+		switch (executionMode) {
+		case LOOP:
+			return pool;
+		case VIRTUAL:
+			return handlerExecutor;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * One virtual thread per task, or a fixed pool of
+	 * {@link #VIRTUAL_FALLBACK_THREADS} if the JVM has no virtual threads.
+	 * 
+	 * @return
+	 */
+	private Executor newHandlerExecutor() {
+		if (!JTornadoThreadFactory.isVirtualSupported()) {
+			logger.warning("Virtual threads require Java 21, handlers will run in a pool of "
+					+ VIRTUAL_FALLBACK_THREADS + " platform threads");
+			return Executors.newFixedThreadPool(VIRTUAL_FALLBACK_THREADS,
+					new JTornadoThreadFactory("JTornado Handler-"));
+		}
+		logger.info("Handlers run in virtual threads");
+		final JTornadoThreadFactory factory = JTornadoThreadFactory
+				.virtual("JTornado Handler-");
+		return new Executor() {
+
+			@Override
+			public void execute(Runnable command) {
+				factory.newThread(command).start();
+			}
+		};
+	}
+
+	/**
+	 * Selects where the HTTP parsing runs, see {@link ExecutionMode}. Must be
+	 * called before {@link #listen(int)}. Ignored by an IOLoop given to the
+	 * constructor.
+	 * 
+	 * @param mode
+	 * @return
+	 */
+	public HttpServer setExecutionMode(ExecutionMode mode) {
+		this.executionMode = mode;
+		return this;
+	}
+
+	/**
+	 * Round-robin over the IOLoops of the multi-reactor mode. Otherwise the
+	 * connection stays in the loop that accepted it. Called from the acceptor
+	 * loops.
+	 * 
+	 * @return the loop that will serve the next connection
+	 */
+	private IOLoop nextLoop() {
+		if (ioLoops.isEmpty()) {
+			for (IOLoop acceptorLoop : acceptorLoops) {
+				if (acceptorLoop.isLoopThread())
+					return acceptorLoop;
+			}
+			return this.getLoop();
+		}
+		int next = (nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+				% ioLoops.size();
+		return ioLoops.get(next);
+	}
+
+	/**
+	 * Number of server channels bound to the port with SO_REUSEPORT, each one
+	 * accepting in its own IOLoop. Defaults to 1, a single channel without
+	 * SO_REUSEPORT.
+	 * 
+	 * @param acceptors
+	 * @return
+	 */
+	public HttpServer setAcceptors(int acceptors) {
+		if (acceptors < 1)
+			throw new IllegalArgumentException("At least one acceptor required");
+		this.acceptors = acceptors;
+		return this;
+	}
+
+	/**
+	 * Maximum length of the queue of pending connections of each server
+	 * channel. Defaults to 128.
+	 * 
+	 * @param backlog
+	 * @return
+	 */
+	public HttpServer setBacklog(int backlog) {
+		this.backlog = backlog;
+		return this;
+	}
+
+	/**
+	 * If true, {@link #listen(int)} keeps the accept loop in the calling
+	 * thread and serves the accepted connections in {@link #setIOLoops(int)}
+	 * IOLoops, each one with its own selector thread.
+	 * 
+	 * @param multiReactor
+	 * @return
+	 */
+	public HttpServer setMultiReactor(boolean multiReactor) {
+		this.multiReactor = multiReactor;
+		return this;
+	}
+
+	/**
+	 * Number of IOLoops used in multi-reactor mode. Defaults to the number of
+	 * available processors.
+	 * 
+	 * @param count
+	 * @return
+	 */
+	public HttpServer setIOLoops(int count) {
+		if (count < 1)
+			throw new IllegalArgumentException("At least one IOLoop required");
+		this.ioLoopCount = count;
+		return this;
+	}
+
+	/**
+	 * Closes connections idle for more than <b>millis</b>, either waiting for
+	 * a (keep-alive) request or for the client to read the response. 0 keeps
+	 * them open forever.
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	public HttpServer setIdleTimeout(long millis) {
+		this.idleTimeout = millis;
+		return this;
+	}
+
+	/**
+	 * Closes connections whose client takes no bytes of a pending response
+	 * for <b>millis</b>, so stalled clients do not pin the memory of their
+	 * responses. Defaults to the idle timeout, 0 waits forever.
+	 * 
+	 * @param millis
+	 * @return
+	 */
+	public HttpServer setWriteStallTimeout(long millis) {
+		this.writeStallTimeout = millis;
+		return this;
+	}
+
+	/**
+	 * Request bodies up to <b>bytes</b> are read in a buffer of the
+	 * {@link BufferPool}, larger ones are written to a temp file as they
+	 * arrive and mapped read only, so big uploads do not weigh on the heap.
+	 * Either way the body is given back when the request finishes.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public HttpServer setBodySpillThreshold(long bytes) {
+		this.bodySpillThreshold = bytes;
+		return this;
+	}
+
+	/**
+	 * Longest request line accepted, longer ones are answered with 414.
+	 * Defaults to {@link HttpParser#DEFAULT_MAX_REQUEST_LINE_SIZE}.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public HttpServer setMaxRequestLineSize(int bytes) {
+		this.maxRequestLineSize = bytes;
+		return this;
+	}
+
+	/**
+	 * Longest request line and headers accepted, longer ones are answered
+	 * with 431. Defaults to {@link HttpParser#DEFAULT_MAX_HEADER_SIZE}.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public HttpServer setMaxHeaderSize(int bytes) {
+		this.maxHeaderSize = bytes;
+		return this;
+	}
+
+	/**
+	 * Requests of a connection read and executed while the first one is
+	 * not answered yet, for clients pipelining them. Responses are written
+	 * in the order of the requests whatever order the handlers finish in.
+	 * Defaults to {@link ConnectionParameters#DEFAULT_MAX_PIPELINE_DEPTH}, 1
+	 * reads a request only once the one before is answered.
+	 * <p>
+	 * Ignored in {@link ExecutionMode#POOL}: handlers run in the thread
+	 * handling the event and may finish from any other, nothing brings
+	 * their writes back to the thread of the connection, so a request is
+	 * read only once the one before is answered.
+	 * </p>
+	 * 
+	 * @param depth
+	 * @return
+	 */
+	public HttpServer setMaxPipelineDepth(int depth) {
+		if (depth < 1)
+			throw new IllegalArgumentException("Pipeline depth must be at least 1");
+		this.maxPipelineDepth = depth;
+		return this;
+	}
+
+	/**
+	 * Largest chunk of a request body sent with Transfer-Encoding: chunked,
+	 * larger ones are rejected with 413. Defaults to
+	 * {@link ChunkedDecoder#DEFAULT_MAX_CHUNK_SIZE}.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public HttpServer setMaxChunkSize(long bytes) {
+		this.maxChunkSize = bytes;
+		return this;
+	}
+
+	/**
+	 * Largest request body sent with Transfer-Encoding: chunked, whose
+	 * length is not known before it is read. Larger ones are rejected with
+	 * 413. Defaults to {@link ChunkedDecoder#DEFAULT_MAX_BODY_SIZE}.
+	 * 
+	 * @param bytes
+	 * @return
+	 */
+	public HttpServer setMaxBodySize(long bytes) {
+		this.maxBodySize = bytes;
+		return this;
+	}
+
+	/**
+	 * Sets TCP_NODELAY on the accepted connections, true by default. The
+	 * responses to pipelined requests are written one after the other and,
+	 * with Nagle's algorithm, each small one would wait for the client to
+	 * acknowledge the one before, which it delays.
+	 * 
+	 * @param tcpNoDelay
+	 * @return
+	 */
+	public HttpServer setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	/**
+	 * If true, {@link #listen(int)} publishes the {@link IOLoopMetrics} of
+	 * every loop in the platform MBean server.
+	 * 
+	 * @param jmx
+	 * @return
+	 */
+	public HttpServer setJmx(boolean jmx) {
+		this.jmx = jmx;
+		return this;
+	}
+
+	/**
+	 * The IOLoops serving connections in multi-reactor mode, empty otherwise.
+	 * Each loop counts its connections and events.
+	 * 
+	 * @return
+	 */
+	public List<IOLoop> getIOLoops() {
+		return Collections.unmodifiableList(ioLoops);
+	}
+
+	/**
+	 * The IOLoops accepting connections, one per acceptor, the first one
+	 * running in the thread calling {@link #listen(int)}. Empty before
+	 * listen.
+	 * 
+	 * @return
+	 */
+	public List<IOLoop> getAcceptorLoops() {
+		return Collections.unmodifiableList(acceptorLoops);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jtornadoweb.IOLoop.EventHandlerAddapter#onAccept(java.nio.channels
+	 * .SelectableChannel)
+	 */
+	@Override
+	protected void onAccept(SelectableChannel channel) throws Exception {
+		if (overloadPolicy == OverloadPolicy.REJECT && overloaded()) {
+			reject((SocketChannel) channel);
+			return;
+		}
+		openConnections.incrementAndGet();
+		if (tcpNoDelay)
+			((SocketChannel) channel).setOption(StandardSocketOptions.TCP_NODELAY,
+					true);
+		IOStream stream = new IOStream((SocketChannel) channel, nextLoop());
+		stream.setCloseCallback(onClose);
+		stream.setReadTimeout(idleTimeout);
+		stream.setWriteTimeout(writeStallTimeout < 0 ? idleTimeout
+				: writeStallTimeout);
+		new HttpConnection(stream, ((SocketChannel) channel).socket()
+				.getInetAddress(), requestCallback, noKeepAlive, xHeaders,
+				connectionParameters);
+		// OP_ACCEPT stays armed in the loop, no need to add the handler again.
+
+	}
+
+	/**
+	 * Pauses OP_ACCEPT of the server channel if overloaded and
+	 * {@link OverloadPolicy#PAUSE_ACCEPT} is in use. A timeout of the acceptor
+	 * loop checks the load again every {@link #ACCEPT_PAUSE_CHECK} ms and
+	 * resumes accepting once it is back under the limits.
+	 */
+	@Override
+	protected boolean keepAccepting(final SelectableChannel serverChannel) {
+		if (overloadPolicy != OverloadPolicy.PAUSE_ACCEPT || !overloaded())
+			return true;
+		final IOLoop acceptorLoop = acceptorLoops.get(serverSocketChannels
+				.indexOf(serverChannel));
+		try {
+			acceptorLoop.disableOps(serverChannel, SelectionKey.OP_ACCEPT);
+		} catch (Exception e) {
+			logger.warning("Unable to pause accept: " + e);
+			return false;
+		}
+		pauses.incrementAndGet();
+		acceptorLoop.addTimeout(System.currentTimeMillis()
+				+ ACCEPT_PAUSE_CHECK, new Runnable() {
+
+			@Override
+			public void run() {
+				if (overloaded()) {
+					acceptorLoop.addTimeout(System.currentTimeMillis()
+							+ ACCEPT_PAUSE_CHECK, this);
+					return;
+				}
+				try {
+					acceptorLoop.enableOps(serverChannel,
+							SelectionKey.OP_ACCEPT);
+				} catch (Exception e) {
+					logger.warning("Unable to resume accept: " + e);
+				}
+			}
+		});
+		return false;
+	}
+
+	/**
+	 * True if any of the admission limits is reached.
+	 * 
+	 * @return
+	 */
+	private boolean overloaded() {
+		return (maxConnections > 0 && openConnections.get() >= maxConnections)
+				|| (maxQueuedTasks > 0 && queuedTasks() >= maxQueuedTasks);
+	}
+
+	/**
+	 * Tasks waiting in the queue of the pool. Virtual threads, or the
+	 * cached pool standing for them, never queue a task: the handlers
+	 * running are counted instead.
+	 * 
+	 * @return
+	 */
+	private int queuedTasks() {
+		if (executionMode == ExecutionMode.VIRTUAL)
+			return connectionParameters == null ? 0 : connectionParameters.inFlight
+					.get();
+		if (pool instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor) pool).getQueue().size();
+		return 0;
+	}
+
+	/**
+	 * Writes the precomputed 503 and closes the connection, no IOStream is
+	 * created for it.
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void reject(SocketChannel channel) throws IOException {
+		rejected.incrementAndGet();
+		try {
+			channel.write(SERVICE_UNAVAILABLE.duplicate());
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Maximum number of open connections. 0, the default, means no limit.
+	 * 
+	 * @param maxConnections
+	 * @return
+	 */
+	public HttpServer setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+		return this;
+	}
+
+	/**
+	 * Maximum number of tasks waiting in the queue of the pool. 0, the
+	 * default, means no limit. In {@link ExecutionMode#VIRTUAL} no task
+	 * waits for a thread, the limit is then on the handlers running.
+	 * 
+	 * @param maxQueuedTasks
+	 * @return
+	 */
+	public HttpServer setMaxQueuedTasks(int maxQueuedTasks) {
+		this.maxQueuedTasks = maxQueuedTasks;
+		return this;
+	}
+
+	/**
+	 * What to do with new connections once a limit is reached.
+	 * 
+	 * @param policy
+	 * @return
+	 */
+	public HttpServer setOverloadPolicy(OverloadPolicy policy) {
+		this.overloadPolicy = policy;
+		return this;
+	}
+
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	/**
+	 * Connections answered with 503 by {@link OverloadPolicy#REJECT}.
+	 * 
+	 * @return
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * Times accepting was paused by {@link OverloadPolicy#PAUSE_ACCEPT}.
+	 * 
+	 * @return
+	 */
+	public long getPausedCount() {
+		return pauses.get();
+	}
+
+	/**
+	 * Sheds new requests with 503 while the given {@link CoDel} considers the
+	 * executor overloaded. It is fed with the time each task waited before
+	 * running: the events in {@link ExecutionMode#POOL}, the application in
+	 * the other modes. Must be called before {@link #listen(int)}.
+	 * 
+	 * @param codel
+	 * @return
+	 */
+	public HttpServer setCoDel(CoDel codel) {
+		this.codel = codel;
+		return this;
+	}
+
+	public CoDel getCoDel() {
+		return codel;
+	}
+
+	/**
+	 * Settings shared by the {@link HttpConnection}s of a server.
+	 */
+	public static class ConnectionParameters {
+		/**
+		 * Executes the requestCallback. If null, it runs in the thread that
+		 * parsed the request.
+		 */
+		final Executor executor;
+		/**
+		 * Sheds requests if overloaded, may be null.
+		 */
+		final CoDel codel;
+		/**
+		 * Bodies larger than this are written to a temp file instead of
+		 * memory.
+		 */
+		final long bodySpillThreshold;
+		/**
+		 * Limits of the request line and of the whole head, see
+		 * {@link HttpParser}.
+		 */
+		final int maxRequestLineSize;
+		final int maxHeaderSize;
+		/**
+		 * Requests of a connection read ahead while the ones before are
+		 * answered, 1 disables pipelining. Without an executor there is no
+		 * read ahead, see {@link HttpConnection#pipelineDepth()}.
+		 */
+		final int maxPipelineDepth;
+		/**
+		 * Limits of chunked request bodies, see {@link ChunkedDecoder}.
+		 */
+		final long maxChunkSize;
+		final long maxBodySize;
+		/**
+		 * Tasks given to the executor and not done yet, see
+		 * {@link HttpServer#setMaxQueuedTasks(int)}.
+		 */
+		final AtomicInteger inFlight = new AtomicInteger();
+
+		public static final int DEFAULT_MAX_PIPELINE_DEPTH = 16;
+
+		/**
+		 * Same as Netty's threshold for keeping POST data in memory, rounded
+		 * to the largest size class of the {@link BufferPool}.
+		 */
+		public static final long DEFAULT_BODY_SPILL_THRESHOLD = 64 * 1024;
+
+		public ConnectionParameters() {
+			this(null, null);
+		}
+
+		/**
+		 * @param executor
+		 *            executes the requestCallback. Writes and finish from its
+		 *            threads are sent back to the loop of the stream.
+		 * @param codel
+		 */
+		public ConnectionParameters(Executor executor, CoDel codel) {
+			this(executor, codel, DEFAULT_BODY_SPILL_THRESHOLD);
+		}
+
+		/**
+		 * @param executor
+		 * @param codel
+		 * @param bodySpillThreshold
+		 *            bodies larger than this are written to a temp file.
+		 */
+		public ConnectionParameters(Executor executor, CoDel codel,
+				long bodySpillThreshold) {
+			this(executor, codel, bodySpillThreshold,
+					HttpParser.DEFAULT_MAX_REQUEST_LINE_SIZE,
+					HttpParser.DEFAULT_MAX_HEADER_SIZE,
+					DEFAULT_MAX_PIPELINE_DEPTH);
+		}
+
+		/**
+		 * @param executor
+		 * @param codel
+		 * @param bodySpillThreshold
+		 * @param maxRequestLineSize
+		 *            longer request lines are rejected with 414.
+		 * @param maxHeaderSize
+		 *            longer heads are rejected with 431.
+		 * @param maxPipelineDepth
+		 *            requests of a connection read before the first is
+		 *            answered.
+		 */
+		public ConnectionParameters(Executor executor, CoDel codel,
+				long bodySpillThreshold, int maxRequestLineSize,
+				int maxHeaderSize, int maxPipelineDepth) {
+			this(executor, codel, bodySpillThreshold, maxRequestLineSize,
+					maxHeaderSize, maxPipelineDepth,
+					ChunkedDecoder.DEFAULT_MAX_CHUNK_SIZE,
+					ChunkedDecoder.DEFAULT_MAX_BODY_SIZE);
+		}
+
+		/**
+		 * @param executor
+		 * @param codel
+		 * @param bodySpillThreshold
+		 * @param maxRequestLineSize
+		 * @param maxHeaderSize
+		 * @param maxPipelineDepth
+		 * @param maxChunkSize
+		 *            larger chunks of a chunked body are rejected with 413.
+		 * @param maxBodySize
+		 *            larger chunked bodies are rejected with 413.
+		 */
+		public ConnectionParameters(Executor executor, CoDel codel,
+				long bodySpillThreshold, int maxRequestLineSize,
+				int maxHeaderSize, int maxPipelineDepth, long maxChunkSize,
+				long maxBodySize) {
+			if (maxPipelineDepth < 1)
+				throw new IllegalArgumentException(
+						"Pipeline depth must be at least 1");
+			this.maxPipelineDepth = maxPipelineDepth;
+			this.executor = executor;
+			this.codel = codel;
+			this.bodySpillThreshold = bodySpillThreshold;
+			this.maxRequestLineSize = maxRequestLineSize;
+			this.maxHeaderSize = maxHeaderSize;
+			this.maxChunkSize = maxChunkSize;
+			this.maxBodySize = maxBodySize;
+		}
+	}
+
+	/**
+	 * Holds a set of http headers. Incoming headers should not be modified.
+	 * <p>
+	 * Names are case insensitive and a name may have several values, see
+	 * {@link #getList(String)}. Headers of a request keep the offsets of
+	 * their names and values in the bytes of the request head, as found by
+	 * the {@link HttpParser}, in a small open addressing table: common names
+	 * are matched to the interned constants of {@link #KNOWN_NAMES} and no
+	 * String is created until a value is asked for.
+	 * </p>
+	 * 
+	 * @author paulosuzart@gmail.com
+	 * 
+	 */
+	public static class HttpHeaders {
+
+		/**
+		 * Names recognized without decoding them, the same String instance
+		 * for every request.
+		 */
+		public static final String[] KNOWN_NAMES = { "Host", "Connection",
+				"Keep-Alive", "Content-Length", "Content-Type",
+				"Content-Encoding", "Content-Disposition", "Transfer-Encoding",
+				"TE", "Trailer", "Expect", "Upgrade", "Accept",
+				"Accept-Charset", "Accept-Encoding", "Accept-Language",
+				"User-Agent", "Referer", "Origin", "Cookie", "Authorization",
+				"Cache-Control", "Pragma", "Range", "If-Modified-Since",
+				"If-None-Match", "X-Forwarded-For", "X-Real-Ip", "X-Scheme",
+				"X-Requested-With" };
+
+		/**
+		 * Index + 1 of the known names, by hash.
+		 */
+		private static final int[] KNOWN_TABLE = new int[128];
+
+		static {
+			for (int i = 0; i < KNOWN_NAMES.length; i++) {
+				int slot = hash(KNOWN_NAMES[i]) & (KNOWN_TABLE.length - 1);
+				while (KNOWN_TABLE[slot] != 0)
+					slot = (slot + 1) & (KNOWN_TABLE.length - 1);
+				KNOWN_TABLE[slot] = i + 1;
+			}
+		}
+
+		/**
+		 * Value of a header replaced by {@link #put(String, String)}.
+		 */
+		private static final Object REMOVED = new Object();
+
+		/**
+		 * The request head, or null.
+		 */
+		private byte[] data;
+		private int base;
+		/**
+		 * Start and end of the name, start and end of the value in data, per
+		 * header.
+		 */
+		private int[] offsets;
+		/**
+		 * Hash of the name and index of the known name, or -1, per header.
+		 */
+		private int[] meta;
+		/**
+		 * Name and value per header, once decoded or as put. Null until a
+		 * value is decoded.
+		 */
+		private Object[] strings;
+		/**
+		 * Header index + 1, by hash of the name. Headers of the same name are
+		 * found in the order they were added.
+		 */
+		private int[] table;
+		private int count;
+
+		public HttpHeaders() {
+		}
+
+		/**
+		 * The headers found by a complete parser in the bytes of the request
+		 * head. They keep the bytes.
+		 * 
+		 * @param head
+		 *            the bytes the parser scanned, in a heap buffer.
+		 * @param parser
+		 * @return
+		 */
+		public static HttpHeaders parse(ByteBuffer head, HttpParser parser) {
+			HttpHeaders headers = new HttpHeaders();
+			int count = parser.getHeaderCount();
+			int[] offsets = parser.takeHeaderOffsets();
+			if (count == 0)
+				return headers;
+			headers.data = head.array();
+			headers.base = head.arrayOffset() + head.position();
+			headers.offsets = offsets;
+			headers.meta = new int[offsets.length / 2];
+			headers.table = new int[tableSize(count)];
+			for (int i = 0; i < count; i++) {
+				int start = headers.base + offsets[i * 4];
+				int end = headers.base + offsets[i * 4 + 1];
+				int hash = hash(headers.data, start, end);
+				headers.meta[i * 2] = hash;
+				headers.meta[i * 2 + 1] = known(headers.data, start, end, hash);
+				headers.insert(i, hash);
+			}
+			headers.count = count;
+			return headers;
+		}
+
+		/**
+		 * Parses header lines, as the ones of a multipart/form-data part.
+		 * Lines without a colon are ignored.
+		 * 
+		 * @param header
+		 * @return
+		 */
+		public static HttpHeaders parse(String header) {
+
+			HttpHeaders newHeaders = new HttpHeaders();
+			if (header == null || header.trim().length() == 0)
+				return newHeaders;
+
+			for (String line : header.split("\r\n")) {
+				int colon = line.indexOf(':');
+				if (colon < 1)
+					continue;
+				newHeaders.add(line.substring(0, colon), line.substring(
+						colon + 1).trim());
+			}
+			return newHeaders;
+		}
+
+		/**
+		 * Sets the value of the header, replacing the ones it had.
+		 * 
+		 * @param key
+		 * @param value
+		 */
+		public void put(String key, String value) {
+			int hash = hash(key);
+			int known = known(key, hash);
+			for (int slot = first(hash); slot != -1; slot = next(slot, hash)) {
+				int i = table[slot] - 1;
+				if (matches(i, key, hash, known))
+					strings()[i * 2 + 1] = REMOVED;
+			}
+			add(key, value, hash, known);
+		}
+
+		/**
+		 * Adds a value to the header, keeping the ones it had.
+		 * 
+		 * @param key
+		 * @param value
+		 */
+		public void add(String key, String value) {
+			int hash = hash(key);
+			add(key, value, hash, known(key, hash));
+		}
+
+		public String get(String key, String defualt) {
+			String value = get(key);
+			return value != null ? value : defualt;
+		}
+
+		/**
+		 * The value of the header, its values joined by commas if it has
+		 * several, or null.
+		 * 
+		 * @param name
+		 * @return
+		 */
+		public String get(String name) {
+			int hash = hash(name);
+			int known = known(name, hash);
+			String first = null;
+			StringBuilder joined = null;
+			for (int slot = first(hash); slot != -1; slot = next(slot, hash)) {
+				int i = table[slot] - 1;
+				if (!matches(i, name, hash, known) || isRemoved(i))
+					continue;
+				String value = value(i);
+				if (first == null)
+					first = value;
+				else {
+					if (joined == null)
+						joined = new StringBuilder(first);
+					joined.append(',').append(value);
+				}
+			}
+			return joined != null ? joined.toString() : first;
+		}
+
+		/**
+		 * Every value of the header, in the order received.
+		 * 
+		 * @param name
+		 * @return
+		 */
+		public List<String> getList(String name) {
+			int hash = hash(name);
+			int known = known(name, hash);
+			List<String> values = new ArrayList<String>(1);
+			for (int slot = first(hash); slot != -1; slot = next(slot, hash)) {
+				int i = table[slot] - 1;
+				if (matches(i, name, hash, known) && !isRemoved(i))
+					values.add(value(i));
+			}
+			return values;
+		}
+
+		/**
+		 * Returns true if the given name is a keu in _headers.
+		 * 
+		 * @param name
+		 * @return
+		 */
+		public boolean contains(String name) {
+			int hash = hash(name);
+			int known = known(name, hash);
+			for (int slot = first(hash); slot != -1; slot = next(slot, hash)) {
+				int i = table[slot] - 1;
+				if (matches(i, name, hash, known) && !isRemoved(i))
+					return true;
+			}
+			return false;
+		}
+
+		private void add(String key, String value, int hash, int known) {
+			ensureCapacity();
+			int i = count;
+			meta[i * 2] = hash;
+			meta[i * 2 + 1] = known;
+			Object[] strings = strings();
+			strings[i * 2] = known >= 0 ? KNOWN_NAMES[known] : key;
+			strings[i * 2 + 1] = value;
+			offsets[i * 4] = -1;
+			insert(i, hash);
+			count++;
+		}
+
+		/**
+		 * Makes room for one more header, keeping the table half empty.
+		 */
+		private void ensureCapacity() {
+			if (meta == null) {
+				offsets = new int[32];
+				meta = new int[16];
+				strings = new Object[16];
+				table = new int[16];
+				return;
+			}
+			if (count * 2 == meta.length) {
+				offsets = Arrays.copyOf(offsets, offsets.length * 2);
+				meta = Arrays.copyOf(meta, meta.length * 2);
+				if (strings != null)
+					strings = Arrays.copyOf(strings, strings.length * 2);
+			}
+			if ((count + 1) * 2 > table.length) {
+				table = new int[table.length * 2];
+				for (int i = 0; i < count; i++)
+					insert(i, meta[i * 2]);
+			}
+		}
+
+		private Object[] strings() {
+			if (strings == null)
+				strings = new Object[meta.length];
+			return strings;
+		}
 
-	}
+		private boolean isRemoved(int i) {
+			return strings != null && strings[i * 2 + 1] == REMOVED;
+		}
 
-	/**
-	 * Holds a set of http headers. Incoming headers should not be modified.
-	 * 
-	 * @author paulosuzart@gmail.com
-	 * 
-	 */
-	public static class HttpHeaders {
+		/**
+		 * The value of the header, decoded from the request bytes the first
+		 * time.
+		 */
+		private String value(int i) {
+			Object[] strings = strings();
+			if (strings[i * 2 + 1] == null)
+				strings[i * 2 + 1] = new String(data, base + offsets[i * 4 + 2],
+						offsets[i * 4 + 3] - offsets[i * 4 + 2],
+						StandardCharsets.ISO_8859_1);
+			return (String) strings[i * 2 + 1];
+		}
 
-		private Map<String, String> _headers = new HashMap<String, String>();
+		private boolean matches(int i, String name, int hash, int known) {
+			if (meta[i * 2] != hash || meta[i * 2 + 1] != known)
+				return false;
+			if (known >= 0)
+				return true;
+			if (offsets[i * 4] == -1)
+				return name.equalsIgnoreCase((String) strings[i * 2]);
+			int start = base + offsets[i * 4];
+			int end = base + offsets[i * 4 + 1];
+			return equalsIgnoreCase(data, start, end, name);
+		}
 
-		public static HttpHeaders parse(String header) {
+		private static int tableSize(int count) {
+			int size = 16;
+			while (size < count * 2)
+				size *= 2;
+			return size;
+		}
 
-			HttpHeaders newHeaders = new HttpHeaders();
-			if (header == null || header.trim().length() == 0)
-				return newHeaders;
+		private void insert(int i, int hash) {
+			int mask = table.length - 1;
+			int slot = hash & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = i + 1;
+		}
 
-			for (String line : header.split("\r\n")) {
-				if (line.equals("") || line.equals("\r"))
-					continue;
+		/**
+		 * First occupied slot of the probe sequence of the hash, or -1.
+		 */
+		private int first(int hash) {
+			if (table == null)
+				return -1;
+			int slot = hash & (table.length - 1);
+			return table[slot] != 0 ? slot : -1;
+		}
 
-				String[] h = line.split(":");
-				if (h.length == 1)
-					continue;
-				newHeaders.put(h[0], h[1].trim());
-			}
-			return newHeaders;
+		private int next(int slot, int hash) {
+			slot = (slot + 1) & (table.length - 1);
+			return table[slot] != 0 ? slot : -1;
 		}
 
-		public void put(String key, String value) {
-			_headers.put(key, value);
+		private static int lower(int c) {
+			return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
 		}
 
-		public String get(String key, String defualt) {
-			return _headers.containsKey(key) ? _headers.get(key) : defualt;
+		private static int hash(String name) {
+			int hash = 0;
+			for (int i = 0; i < name.length(); i++)
+				hash = 31 * hash + lower(name.charAt(i));
+			return mix(hash);
 		}
 
-		public String get(String name) {
-			return _headers.get(name);
+		private static int hash(byte[] data, int start, int end) {
+			int hash = 0;
+			for (int i = start; i < end; i++)
+				hash = 31 * hash + lower(data[i] & 0xff);
+			return mix(hash);
 		}
 
 		/**
-		 * Returns true if the given name is a keu in _headers.
-		 * 
-		 * @param name
-		 * @return
+		 * Spreads the high bits, the table uses the low ones.
 		 */
-		public boolean contains(String name) {
-			return _headers.containsKey(name);
+		private static int mix(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+
+		private static boolean equalsIgnoreCase(byte[] data, int start,
+				int end, String name) {
+			if (end - start != name.length())
+				return false;
+			for (int i = 0; i < name.length(); i++) {
+				if (lower(data[start + i] & 0xff) != lower(name.charAt(i)))
+					return false;
+			}
+			return true;
+		}
+
+		private static int known(String name, int hash) {
+			int mask = KNOWN_TABLE.length - 1;
+			for (int slot = hash & mask; KNOWN_TABLE[slot] != 0; slot = (slot + 1)
+					& mask) {
+				String known = KNOWN_NAMES[KNOWN_TABLE[slot] - 1];
+				if (known == name || known.equalsIgnoreCase(name))
+					return KNOWN_TABLE[slot] - 1;
+			}
+			return -1;
+		}
+
+		private static int known(byte[] data, int start, int end, int hash) {
+			int mask = KNOWN_TABLE.length - 1;
+			for (int slot = hash & mask; KNOWN_TABLE[slot] != 0; slot = (slot + 1)
+					& mask) {
+				if (equalsIgnoreCase(data, start, end,
+						KNOWN_NAMES[KNOWN_TABLE[slot] - 1]))
+					return KNOWN_TABLE[slot] - 1;
+			}
+			return -1;
 		}
 	}
 
@@ -184,13 +1394,50 @@ public class HttpServer extends EventHandlerAdapter {
 		private final RequestCallback requestCallback;
 		private final boolean noKeepAlive;
 		private final boolean xHeaders;
+		private final ConnectionParameters params;
+		private static final BufferPool pool = BufferPool.getDefault();
+		/**
+		 * The request whose head or body is being read, null between
+		 * requests.
+		 */
 		private HttpRequest request;
-		private boolean requestFinished;
+		/**
+		 * Requests read and not answered yet, in the order they came. The
+		 * first one writes to the stream, the writes of the others are held
+		 * until their turn, so responses go out in order.
+		 */
+		private final ArrayDeque<HttpRequest> pipeline = new ArrayDeque<HttpRequest>(
+				2);
+		/**
+		 * No request is read after the last one read, the connection closes
+		 * once it is answered.
+		 */
+		private boolean lastRequest;
+		/**
+		 * Error response written once the requests before it are answered.
+		 */
+		private byte[] closingResponse;
+		private boolean readingHeaders;
+		private boolean pumping;
+		private boolean pumpAgain;
+		private boolean finishing;
+		/**
+		 * Callbacks of the writes in the stream, run once it has written
+		 * everything.
+		 */
+		private final ArrayDeque<Runnable> writeCallbacks = new ArrayDeque<Runnable>(
+				2);
+		/**
+		 * Bytes written by application threads on their way to the loop.
+		 */
+		private final AtomicLong marshalled = new AtomicLong();
 
-		private StreamHandler onHeaders = new StreamHandler() {
+		private final HttpParser parser;
+
+		private BufferHandler onHeaders = new BufferHandler() {
 
 			@Override
-			public void execute(String data) throws Exception {
+			public void execute(ByteBuffer data) throws Exception {
 				onHeaders(data);
 			}
 		};
@@ -198,65 +1445,233 @@ public class HttpServer extends EventHandlerAdapter {
 		public HttpConnection(IOStream stream, InetAddress inetAddress,
 				RequestCallback requestCallback, boolean noKeepAlive,
 				boolean xHeaders) throws Exception {
+			this(stream, inetAddress, requestCallback, noKeepAlive, xHeaders,
+					new ConnectionParameters());
+		}
+
+		public HttpConnection(IOStream stream, InetAddress inetAddress,
+				RequestCallback requestCallback, boolean noKeepAlive,
+				boolean xHeaders, ConnectionParameters params)
+				throws Exception {
+			this.params = params;
 			this.stream = stream;
 			this.address = inetAddress;
 			this.requestCallback = requestCallback;
 			this.noKeepAlive = noKeepAlive;
 			this.xHeaders = xHeaders;
-			stream.readUntil("\r\n\r\n", onHeaders);
+			this.parser = new HttpParser(params.maxRequestLineSize,
+					params.maxHeaderSize);
+			stream.addCloseCallback(new Runnable() {
+
+				@Override
+				public void run() {
+					// the application may still be reading them.
+					if (request != null && !pipeline.contains(request))
+						releaseBody(request, false);
+					for (HttpRequest pending : pipeline) {
+						releaseBody(pending, false);
+						// files held are closed by the writes, the stream
+						// being closed.
+						runHeld(pending);
+					}
+				}
+			});
+			readNext();
+		}
+
+		private void readHeaders() throws Exception {
+			readingHeaders = true;
+			parser.reset();
+			stream.readUntil(parser, onHeaders);
+		}
+
+		/**
+		 * Requests read and not answered yet. Writes and finish of the
+		 * application come back to the loop only when it runs in an
+		 * executor: without one a request may finish from any thread while
+		 * another handles the stream, so nothing is read while a request is
+		 * open, as without pipelining.
+		 * 
+		 * @return
+		 */
+		private int pipelineDepth() {
+			return params.executor == null ? 1 : params.maxPipelineDepth;
+		}
+
+		/**
+		 * Reads the next request if the pipeline has room for it, while the
+		 * ones before are executed. Requests already buffered are parsed
+		 * right away, looping here instead of nesting a call per request.
+		 * 
+		 * @throws Exception
+		 */
+		private void readNext() throws Exception {
+			if (pumping) {
+				pumpAgain = true;
+				return;
+			}
+			pumping = true;
+			try {
+				do {
+					pumpAgain = false;
+					if (request == null && !readingHeaders && !lastRequest
+							&& !stream.closing
+							&& pipeline.size() < pipelineDepth())
+						readHeaders();
+				} while (pumpAgain);
+			} finally {
+				pumping = false;
+			}
+		}
+
+		/**
+		 * The request was read whole, the next one may be read while it is
+		 * executed. Executed without an executor, it may have been finished
+		 * already and the next one be the one being read.
+		 * 
+		 * @param read
+		 * @throws Exception
+		 */
+		private void requestRead(HttpRequest read) throws Exception {
+			if (request == read)
+				request = null;
+			readNext();
+		}
+
+		private boolean keepAlive(HttpRequest request) {
+			if (noKeepAlive || request.closeConnection)
+				return false;
+			String connectionHeader = request.headers.get("Connection", "");
+			if (request.supportsHttp11())
+				return !connectionHeader.equals("close");
+			else if (request.headers.contains("Content-Length")
+					|| request.method.equals("GET")
+					|| request.method.equals("POST"))
+				return connectionHeader.equalsIgnoreCase("Keep-Alive");
+			else
+				return false;
 		}
 
+		/**
+		 * Ends the requests answered, from the first of the pipeline on. The
+		 * next one takes the stream and writes what it held, which may answer
+		 * it too. Writes completing right away call back here, the loop then
+		 * goes on with them.
+		 * 
+		 * @throws Exception
+		 */
 		void finishRequest() throws Exception {
-			boolean disconnect;
-			if (noKeepAlive)
-				disconnect = true;
-			else {
-				String connectionHeader = request.headers.get("Connection", "");
-				if (request.supportsHttp11())
-					disconnect = connectionHeader.equals("close");
-				else if (request.headers.contains("Content-Length")
-						|| request.method.equals("GET")
-						|| request.method.equals("POST"))
-					disconnect = connectionHeader
-							.equalsIgnoreCase("Keep-Alive");
-				else
-					disconnect = true;
+			if (finishing)
+				return;
+			finishing = true;
+			try {
+				HttpRequest done;
+				while ((done = pipeline.peek()) != null && done.requestFinished
+						&& !stream.writing) {
+					pipeline.poll();
+					boolean disconnect = !keepAlive(done);
+					// the rest of an unread body is in the way of the next
+					// request.
+					if (done.bodyPublisher != null
+							&& !done.bodyPublisher.isDone())
+						disconnect = true;
+					releaseBody(done, true);
+					if (done == request)
+						request = null;
+					if (disconnect) {
+						stream.close();
+						return;
+					}
+					HttpRequest next = pipeline.peek();
+					if (next != null)
+						runHeld(next);
+				}
+			} finally {
+				finishing = false;
 			}
-			request = null;
-			requestFinished = false;
-			if (disconnect) {
-				stream.close();
+			if (pipeline.isEmpty() && closingResponse != null) {
+				byte[] response = closingResponse;
+				closingResponse = null;
+				respondAndClose(response);
 				return;
 			}
-			stream.readUntil("\r\n\r\n", onHeaders);
-
+			readNext();
 		}
 
 		/**
-		 * Extracts the header and reply to the client. <br>
-		 * TODO complete the implementation
+		 * Extracts the header and reply to the client. The request line and
+		 * headers were scanned by the {@link HttpParser} as they arrived,
+		 * <b>data</b> holds their bytes.
 		 */
-		public void onHeaders(String data) {// HTTPConnection._on_headers
+		public void onHeaders(ByteBuffer data) {// HTTPConnection._on_headers
+			readingHeaders = false;
 			try {
+				if (!parser.isComplete()) {
+					reject(parser.getErrorStatus(), parser.getError());
+					return;
+				}
+
+				String method = parser.getMethod(data);
+				String uri = parser.getUri(data);
+				String version = parser.getVersion(data);
 
-				int eol = data.indexOf("\r\n");
-				String[] startLine = data.substring(0, eol).split(" ");
-				String method = startLine[0];
-				String uri = startLine[1];
-				String version = startLine[2];
+				HttpHeaders headers = HttpHeaders.parse(data, parser);
 
-				if (!version.startsWith("HTTP/"))
-					throw new RuntimeException(
-							"Malformed HTTP version in HTTP Request-Line");
+				if (params.codel != null && params.codel.isOverloaded()) {
+					shed();
+					return;
+				}
+
+				String transferEncoding = headers.get("Transfer-Encoding");
+				if (transferEncoding != null) {
+					// a length the proxy in front may have read differently.
+					if (headers.contains("Content-Length")) {
+						reject(400, "Both Transfer-Encoding and Content-Length");
+						return;
+					}
+					if (!transferEncoding.trim().equalsIgnoreCase("chunked")) {
+						reject(501, "Unsupported Transfer-Encoding "
+								+ transferEncoding);
+						return;
+					}
+				}
 
-				HttpHeaders headers = HttpHeaders.parse(data.substring(eol + 2,
-						data.length() - 1));
+				long contentLength = contentLength(headers);
+				if (contentLength < 0) {
+					// the end of the body would be guessed, and the rest
+					// read as the next request.
+					reject(400, "Malformed Content-Length");
+					return;
+				}
 
 				request = new HttpRequest(method, uri, version, headers,
 						address.getHostAddress(), this);
+				pipeline.add(request);
+				if (!keepAlive(request))
+					lastRequest = true;
+
+				if (transferEncoding != null) {
+					continueIfExpected();
+					ChunkedDecoder decoder = new ChunkedDecoder(stream,
+							params.maxChunkSize, params.maxBodySize,
+							params.maxHeaderSize);
+					if (streamBody(request)) {
+						request.bodyPublisher = new BodyPublisher(this,
+								request, decoder);
+						execute(request);
+						return;
+					}
+					readChunkedBody(decoder);
+					return;
+				}
 
-				int contentLength = Integer.valueOf(headers.get(
-						"Content-Length", "0"));
+				if (contentLength > 0 && streamBody(request)) {
+					continueIfExpected();
+					request.bodyPublisher = new BodyPublisher(this,
+							contentLength);
+					execute(request);
+					return;
+				}
 
 				if (contentLength > 0) {
 
@@ -264,36 +1679,309 @@ public class HttpServer extends EventHandlerAdapter {
 						throw new RuntimeException("Content-Length too long");
 					}
 
-					if (headers.get("Expect", "").equals("100-continue")) {
-						stream.write("HTTP/1.1 100 (Continue)\r\n\r\n");
-					}
-
-					StreamHandler onBody = new StreamHandler() {
+					continueIfExpected();
 
-						@Override
-						public void execute(String data) throws Exception {
-							onRequestBody(data);
-						}
-					};
-					stream.readBytes(contentLength, onBody);
+					if (contentLength > params.bodySpillThreshold)
+						spillBody(contentLength);
+					else
+						readBody((int) contentLength);
 					return;
 				}
 
-				requestCallback.execute(request);
+				HttpRequest read = request;
+				execute(read);
+				requestRead(read);
 
 			} catch (Exception e) {
 				e.printStackTrace();
+				// a malformed request must not keep the connection open.
+				try {
+					stream.close();
+				} catch (Exception _e) {
+					_e.printStackTrace();
+				}
+			}
+
+		}
+
+		/**
+		 * The Content-Length of the request, 0 if it has none, -1 if it is
+		 * not 1*DIGIT or is repeated with different values (RFC 7230,
+		 * section 3.3.2).
+		 * 
+		 * @param headers
+		 * @return
+		 */
+		static long contentLength(HttpHeaders headers) {
+			long length = 0;
+			String first = null;
+			for (String header : headers.getList("Content-Length")) {
+				for (String value : header.split(",", -1)) {
+					value = value.trim();
+					if (first == null) {
+						// longer would overflow a long.
+						if (value.isEmpty() || value.length() > 18)
+							return -1;
+						for (int i = 0; i < value.length(); i++) {
+							char c = value.charAt(i);
+							if (c < '0' || c > '9')
+								return -1;
+						}
+						first = value;
+						length = Long.parseLong(value);
+					} else if (!value.equals(first))
+						return -1;
+				}
+			}
+			return length;
+		}
+
+		/**
+		 * Tells the client to send the body of the request, if it waits for
+		 * it.
+		 */
+		private void continueIfExpected() {
+			if (request.headers.get("Expect", "").equals("100-continue"))
+				write(request, ByteBuffer.wrap(CONTINUE_BYTES));
+		}
+
+		/**
+		 * Replies with the error status to a request the parser rejected and
+		 * closes the connection once it is written, the rest of its bytes
+		 * can't be trusted.
+		 * 
+		 * @param status
+		 * @param reason
+		 * @throws Exception
+		 */
+		private void reject(int status, String reason) throws Exception {
+			logger.fine("Rejected request from " + address.getHostAddress()
+					+ ": " + reason);
+			respondAndClose(("HTTP/1.1 " + status + " " + HttpCode.get(status)
+					+ "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+					.getBytes());
+		}
+
+		/**
+		 * Replies 503 without calling the application and closes the
+		 * connection once it is written.
+		 * 
+		 * @throws Exception
+		 */
+		private void shed() throws Exception {
+			params.codel.shed();
+			respondAndClose(SERVICE_UNAVAILABLE_BYTES);
+		}
+
+		/**
+		 * Writes the response, after the ones of the requests before it, and
+		 * closes the connection once it is written. Nothing else is read.
+		 * 
+		 * @param response
+		 * @throws Exception
+		 */
+		private void respondAndClose(byte[] response) throws Exception {
+			lastRequest = true;
+			if (!pipeline.isEmpty()) {
+				closingResponse = response;
+				return;
+			}
+			stream.write(response, new StreamHandler() {
+
+				@Override
+				public void execute(String data) throws Exception {
+					stream.close();
+				}
+			});
+		}
+
+		/**
+		 * Reads the body in a pooled buffer.
+		 * 
+		 * @param length
+		 * @throws Exception
+		 */
+		private void readBody(int length) throws Exception {
+			final ByteBuffer body = pool.acquire(length);
+			request.body = body;
+			request.bodyPooled = true;
+			stream.readInto(body, new Runnable() {
+
+				@Override
+				public void run() {
+					body.flip();
+					onRequestBody(body);
+				}
+			});
+		}
+
+		/**
+		 * Writes the body to a temp file as it arrives, then maps it. The
+		 * file is deleted once closed.
+		 * 
+		 * @param length
+		 * @throws Exception
+		 */
+		private void spillBody(final long length) throws Exception {
+			final FileChannel file = createBodyFile();
+			request.bodyFile = file;
+			stream.readInto(file, length, new Runnable() {
+
+				@Override
+				public void run() {
+					MappedByteBuffer body;
+					try {
+						body = file.map(FileChannel.MapMode.READ_ONLY, 0,
+								length);
+					} catch (IOException e) {
+						// the stream closes the connection.
+						throw new RuntimeException(e);
+					}
+					request.body = body;
+					onRequestBody(body);
+				}
+			});
+		}
+
+		private static FileChannel createBodyFile() throws IOException {
+			return FileChannel.open(Files.createTempFile("jtornado-body-",
+					".tmp"), StandardOpenOption.READ,
+					StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+		}
+
+		/**
+		 * Reads a chunked body whole, its length known at the end only. It
+		 * grows in pooled buffers, then goes to a temp file past the spill
+		 * threshold, as a body with a Content-Length would. Its trailers
+		 * are kept in the request.
+		 * 
+		 * @param decoder
+		 * @throws Exception
+		 */
+		private void readChunkedBody(final ChunkedDecoder decoder)
+				throws Exception {
+			final HttpRequest request = this.request;
+			decoder.read(BodyPublisher.CHUNK_SIZE, new ChunkedDecoder.Handler() {
+
+				@Override
+				public void onData(ByteBuffer data) throws Exception {
+					appendBody(request, data);
+					decoder.read(BodyPublisher.CHUNK_SIZE, this);
+				}
+
+				@Override
+				public void onEnd(HttpHeaders trailers) throws Exception {
+					request.trailers = trailers;
+					if (request.bodyFile != null)
+						request.body = request.bodyFile.map(
+								FileChannel.MapMode.READ_ONLY, 0,
+								request.bodyFile.size());
+					else if (request.body != null)
+						request.body.flip();
+					else
+						request.body = ByteBuffer.allocate(0);
+					onRequestBody(request.body);
+				}
+
+				@Override
+				public void onError(int status, String reason)
+						throws Exception {
+					// never executed, nothing to wait for.
+					releaseBody(request, true);
+					pipeline.remove(request);
+					HttpConnection.this.request = null;
+					reject(status, reason);
+				}
+			});
+		}
+
+		private void appendBody(HttpRequest request, ByteBuffer data)
+				throws IOException {
+			if (request.bodyFile != null) {
+				while (data.hasRemaining())
+					request.bodyFile.write(data);
+				return;
 			}
+			ByteBuffer body = request.body;
+			long size = (body == null ? 0 : body.position()) + data.remaining();
+			if (size > params.bodySpillThreshold) {
+				request.bodyFile = createBodyFile();
+				if (body != null) {
+					body.flip();
+					appendBody(request, body);
+					pool.release(body);
+					request.bodyPooled = false;
+					request.body = null;
+				}
+				appendBody(request, data);
+				return;
+			}
+			if (body == null || body.remaining() < data.remaining()) {
+				ByteBuffer grown = pool.acquire((int) Math.max(size,
+						body == null ? 0 : body.capacity() * 2L));
+				// the whole capacity, the limit is set at the end.
+				grown.limit(grown.capacity());
+				if (body != null) {
+					body.flip();
+					grown.put(body);
+					pool.release(body);
+				}
+				request.body = body = grown;
+				request.bodyPooled = true;
+			}
+			body.put(data);
+		}
+
+		/**
+		 * Gives back the memory or temp file of the body.
+		 * 
+		 * @param request
+		 * @param reuse
+		 *            false if the application may still be using it, the
+		 *            buffer is then left to the GC.
+		 */
+		private void releaseBody(HttpRequest request, boolean reuse) {
+			if (request.bodyPooled) {
+				if (reuse)
+					pool.release(request.body);
+				else
+					pool.discard(request.body);
+				request.bodyPooled = false;
+			}
+			if (request.bodyFile != null) {
+				// a mapping stays valid once the file is closed.
+				try {
+					request.bodyFile.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				request.bodyFile = null;
+			}
+			request.body = null;
+		}
 
+		private void onRequestBody(ByteBuffer data) {
+			try {
+				parseBody(data);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			HttpRequest read = request;
+			execute(read);
+			try {
+				requestRead(read);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
 		}
 
-		private void onRequestBody(String data) throws Exception {
+		private void parseBody(ByteBuffer data) throws Exception {
 			request.body = data;
 			String contentType = request.headers.get("Content-Type", "");
 			if ("POST".equals(request.method)) {
 				if (contentType.startsWith("application/x-www-form-urlencoded")) {
 					Map<String, List<String>> arguments = HttpUtils
-							.parseQueryString(request.body);
+							.parseQueryString(request.getBodyString());
 					for (Entry<String, List<String>> e : arguments.entrySet()) {
 						String name = e.getKey();
 						List<String> values = e.getValue();
@@ -314,44 +2002,168 @@ public class HttpServer extends EventHandlerAdapter {
 					}
 				}
 			}
-			requestCallback.execute(request);
 		}
 
 		/**
-		 * TODO Mutability sux! make this code immutable.
+		 * True if the application wants the body of the request as it
+		 * arrives.
+		 * 
+		 * @param request
+		 * @return
+		 */
+		private boolean streamBody(HttpRequest request) {
+			return requestCallback instanceof StreamingRequestCallback
+					&& ((StreamingRequestCallback) requestCallback)
+							.streamBody(request);
+		}
+
+		/**
+		 * Hands the request to the application, in the executor if any.
+		 * 
+		 * @param request
+		 */
+		private void execute(final HttpRequest request) {
+			dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					requestCallback.execute(request);
+				}
+			});
+		}
+
+		/**
+		 * Runs application code, in the executor if any.
+		 * 
+		 * @param task
+		 */
+		private void dispatch(final Runnable task) {
+			if (params.executor == null) {
+				task.run();
+				return;
+			}
+			final IOLoopMetrics metrics = stream.getLoop().getMetrics();
+			// the clock is read only if something measures the task.
+			final long enqueueTime = params.codel != null
+					|| metrics.isEnabled() ? System.nanoTime() : 0;
+			params.inFlight.incrementAndGet();
+			params.executor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						long start = enqueueTime != 0 ? System.nanoTime() : 0;
+						if (params.codel != null && start != 0)
+							params.codel.onDequeue(start - enqueueTime);
+						task.run();
+						if (metrics.isEnabled() && start != 0)
+							metrics.onTask(start - enqueueTime,
+									System.nanoTime() - start);
+					} finally {
+						params.inFlight.decrementAndGet();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Runs the task in the thread handling the stream: right away, or in
+		 * the loop if the caller is an application thread.
+		 * 
+		 * @param task
+		 */
+		private void inStream(Runnable task) {
+			if (outsideLoop())
+				stream.getLoop().addCallback(task);
+			else
+				task.run();
+		}
+
+		/**
+		 * True if the caller is an application thread and the stream must be
+		 * handled in its loop instead.
+		 * 
+		 * @return
+		 */
+		private boolean outsideLoop() {
+			return params.executor != null
+					&& !stream.getLoop().isLoopThread();
+		}
+
+		private static final byte[] CRLF_CRLF = { '\r', '\n', '\r', '\n' };
+
+		/**
+		 * Absolute index of the pattern in the buffer, between <b>from</b> and
+		 * <b>to</b>, or -1.
+		 */
+		private static int indexOf(ByteBuffer buffer, byte[] pattern, int from,
+				int to) {
+			int last = to - pattern.length;
+			for (int i = from; i <= last; i++) {
+				int j = 0;
+				while (j < pattern.length && buffer.get(i + j) == pattern[j])
+					j++;
+				if (j == pattern.length)
+					return i;
+			}
+			return -1;
+		}
+
+		private static boolean endsWithCrlf(ByteBuffer buffer, int end) {
+			return end - 2 >= buffer.position() && buffer.get(end - 2) == '\r'
+					&& buffer.get(end - 1) == '\n';
+		}
+
+		/**
+		 * TODO Mutability sux! make this code immutable. File bodies are
+		 * slices of the request body, no bytes are copied or decoded.
 		 * 
 		 * @param boundary
-		 * @param data
+		 * @param body
 		 */
 		@SuppressWarnings({ "unchecked", "serial" })
-		private void parseMimeBody(String boundary, String data) {
+		private void parseMimeBody(String boundary, ByteBuffer body) {
 			int footerLen = 0;
 			if (boundary.startsWith("\"") && boundary.endsWith("\""))
 				boundary = StringUtils.substring(boundary, "1:-1");
 
-			footerLen = data.endsWith("\r\n") ? boundary.length() + 6
+			// indexes are absolute, the body may be mapped from a file.
+			footerLen = endsWithCrlf(body, body.limit()) ? boundary.length() + 6
 					: boundary.length() + 4;
 
-			String[] parts = StringUtils.substring(data, ":-" + footerLen)
-					.split("--" + boundary + "\r\n");
-			for (String part : parts) {
-				if ("".equals(part))
+			byte[] separator = ("--" + boundary + "\r\n")
+					.getBytes(StandardCharsets.ISO_8859_1);
+			int end = body.limit() - footerLen;
+			int start = body.position();
+			while (start < end) {
+				int next = indexOf(body, separator, start, end);
+				if (next == -1)
+					next = end;
+				int partStart = start;
+				int partEnd = next;
+				start = next + separator.length;
+				if (partStart == partEnd)
 					continue;
-				int eoh = part.indexOf("\r\n\r\n");
+				int eoh = indexOf(body, CRLF_CRLF, partStart, partEnd);
 				if (eoh == -1) {
 					logger.warning("multipart/form-data missing headers");
 					continue;
 				}
-				HttpHeaders headers = HttpHeaders.parse(StringUtils.substring(
-						part, ":" + eoh));
-				String nameHeader = headers.get("Content-Disposition", "");
+				ByteBuffer head = body.duplicate();
+				head.limit(eoh).position(partStart);
+				HttpHeaders headers = HttpHeaders.parse(StandardCharsets.ISO_8859_1
+						.decode(head).toString());
+				String nameHeader = new String(headers.get(
+						"Content-Disposition", "").getBytes(
+						StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
 				if (!nameHeader.startsWith("form-data;")
-						|| !part.endsWith("\r\n")) {
+						|| !endsWithCrlf(body, partEnd)) {
 					logger.warning("Invalid multipart/form-data");
 					continue;
 				}
-				final String value = StringUtils.substring(part, eoh + 4
-						+ ":-2");
+				final ByteBuffer value = body.duplicate();
+				value.limit(partEnd - 2);
+				value.position(eoh + 4);
 				final Map<String, String> nameValues = new HashMap<String, String>();
 				for (String namePart : StringUtils.substring(nameHeader, "10:")
 						.split(";")) {
@@ -378,51 +2190,524 @@ public class HttpServer extends EventHandlerAdapter {
 				if (nameValues.containsKey("filename")) {
 					final String contentType = headers.get("Content-Type",
 							"application/unknown");
+					final ByteBuffer fileBody = value.slice()
+							.asReadOnlyBuffer();
 					CollectionUtils.setDefault(request.files, name,
-							new HashMap<String, Map<String, String>>()).putAll(
-							new HashMap<String, String>() {
+							new HashMap<String, Object>()).putAll(
+							new HashMap<String, Object>() {
 								{
 									put("filename", nameValues.get("filename"));
-									put("body", value);
+									put("body", fileBody);
 									put("contet_type", contentType);
 								}
 							});
 				} else {
 					CollectionUtils.setDefault(request.arguments, name,
-							new ArrayList<String>()).add(value);
+							new ArrayList<String>()).add(
+							StandardCharsets.UTF_8.decode(value).toString());
 				}
 
 			}
 
 		}
 
-		public void write(byte[] bytes) {
-			assert (request == null);
+		/**
+		 * Writes the buffers in order, in a single gathering write if the
+		 * socket takes them all. Held until the requests before are
+		 * answered.
+		 * 
+		 * @param request
+		 * @param buffers
+		 */
+		public void write(HttpRequest request, ByteBuffer... buffers) {
+			write(request, buffers, null);
+		}
+
+		/**
+		 * Same as {@link #write(HttpRequest, ByteBuffer...)}, the callback
+		 * runs as application code once the buffers are written to the
+		 * socket.
+		 * 
+		 * @param request
+		 * @param buffers
+		 * @param callback
+		 *            may be null
+		 */
+		public void write(final HttpRequest request,
+				final ByteBuffer[] buffers, final Runnable callback) {
+			if (outsideLoop()) {
+				final long count = remaining(buffers);
+				marshalled.addAndGet(count);
+				stream.getLoop().addCallback(new Runnable() {
+
+					@Override
+					public void run() {
+						marshalled.addAndGet(-count);
+						write(request, buffers, callback);
+					}
+				});
+				return;
+			}
 			if (stream.closed)
 				return;
-			StreamHandler handler = new StreamHandler() {
+			if (request != pipeline.peek()) {
+				hold(request, new Runnable() {
+
+					@Override
+					public void run() {
+						write(request, buffers, callback);
+					}
+				}, remaining(buffers));
+				return;
+			}
+			if (callback != null)
+				writeCallbacks.add(callback);
+			stream.write(buffers, onWriteComplete);
+		}
+
+		private static long remaining(ByteBuffer[] buffers) {
+			long bytes = 0;
+			for (ByteBuffer buffer : buffers)
+				bytes += buffer.remaining();
+			return bytes;
+		}
+
+		/**
+		 * Keeps what a request does to the stream before its turn.
+		 */
+		private void hold(HttpRequest request, Runnable action, long bytes) {
+			if (request.held == null)
+				request.held = new ArrayDeque<Runnable>(4);
+			request.held.add(action);
+			request.heldBytes += bytes;
+		}
+
+		/**
+		 * Runs, in order, what the request held.
+		 */
+		private void runHeld(HttpRequest request) {
+			if (request.held == null)
+				return;
+			Runnable action;
+			while ((action = request.held.poll()) != null)
+				action.run();
+			request.heldBytes = 0;
+		}
+
+		/**
+		 * False while the response bytes not taken by the client are above
+		 * the high watermark of the stream, counting the ones still on their
+		 * way to the loop and the ones the request holds until its turn.
+		 * 
+		 * @param request
+		 * @return
+		 */
+		public boolean isWritable(HttpRequest request) {
+			return stream.isWritable()
+					&& stream.getPendingBytes() + marshalled.get()
+							+ request.heldBytes < stream.getHighWatermark();
+		}
+
+		/**
+		 * Runs the task as application code once the connection is writable,
+		 * after the writes made before this call, in the turn of the
+		 * request.
+		 * 
+		 * @param request
+		 * @param task
+		 */
+		public void onDrain(final HttpRequest request, final Runnable task) {
+			inStream(new Runnable() {
 
 				@Override
-				public void execute(String data) throws Exception {
-					onWriteComplete();
+				public void run() {
+					if (request != pipeline.peek() && !stream.closed) {
+						hold(request, this, 0);
+						return;
+					}
+					stream.onDrain(new Runnable() {
+
+						@Override
+						public void run() {
+							dispatch(task);
+						}
+					});
 				}
-			};
-			stream.write(bytes, handler);
+			});
 		}
 
+		/**
+		 * Sends <b>count</b> bytes of the file after the bytes written so far,
+		 * from the page cache straight to the socket. The file is closed once
+		 * sent, or if the connection is closed before.
+		 * 
+		 * @param request
+		 * @param file
+		 * @param position
+		 * @param count
+		 */
+		public void writeFile(final HttpRequest request,
+				final FileChannel file, final long position, final long count) {
+			if (outsideLoop()) {
+				stream.getLoop().addCallback(new Runnable() {
+
+					@Override
+					public void run() {
+						writeFile(request, file, position, count);
+					}
+				});
+				return;
+			}
+			try {
+				if (stream.closed) {
+					file.close();
+					return;
+				}
+				if (request != pipeline.peek()) {
+					hold(request, new Runnable() {
+
+						@Override
+						public void run() {
+							writeFile(request, file, position, count);
+						}
+					}, 0);
+					return;
+				}
+				stream.writeFile(file, position, count, true, onWriteComplete);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		private final Runnable onWriteComplete = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					onWriteComplete();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
 		private void onWriteComplete() throws Exception {
-			if (requestFinished)
-				finishRequest();
+			Runnable callback;
+			while ((callback = writeCallbacks.poll()) != null)
+				dispatch(callback);
+			finishRequest();
+		}
+
+		/**
+		 * The application is done with the request. Its response ends once
+		 * written, and after the responses of the requests before it.
+		 * 
+		 * @param request
+		 * @throws Exception
+		 */
+		public void finish(final HttpRequest request) throws Exception {
+			if (outsideLoop()) {
+				stream.getLoop().addCallback(new Runnable() {
+
+					@Override
+					public void run() {
+						try {
+							finish(request);
+						} catch (Exception e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				return;
+			}
+			// a closed connection already gave its requests back.
+			if (stream.closing)
+				return;
+			request.requestFinished = true;
+			finishRequest();
+
+		}
+
+	}
+
+	/**
+	 * Publishes the body of a request in chunks, as they are read. The socket
+	 * is only read while the subscriber has demand, so a slow subscriber
+	 * slows the client down and a connection holds at most a chunk or two of
+	 * the body. Single subscriber. Signals are sent from the thread handling
+	 * the stream, requests from other threads are sent to the loop.
+	 * <p>
+	 * Cancelling, or a request of zero, stops reading the body but leaves the
+	 * connection open so the application can still answer, e.g. with a 413.
+	 * The rest of the body is never read: the connection is closed once the
+	 * response is finished.
+	 * </p>
+	 */
+	public static class BodyPublisher implements Flow.Publisher<ByteBuffer> {
+
+		/**
+		 * Maximum size of each chunk.
+		 */
+		public static int CHUNK_SIZE = 8192;
+
+		private final HttpConnection connection;
+		private long remaining;
+		/**
+		 * Decodes a chunked body, null if it has a Content-Length.
+		 */
+		private final ChunkedDecoder decoder;
+		private final HttpRequest request;
+		private Flow.Subscriber<? super ByteBuffer> subscriber;
+		private long demand;
+		private boolean reading;
+		private boolean pumping;
+		private boolean done;
+		private boolean cancelled;
+		private Runnable completion;
+
+		private final Flow.Subscription subscription = new Flow.Subscription() {
+
+			@Override
+			public void request(final long n) {
+				connection.inStream(new Runnable() {
+
+					@Override
+					public void run() {
+						if (done || cancelled)
+							return;
+						if (n <= 0) {
+							cancel();
+							subscriber.onError(new IllegalArgumentException(
+									"non-positive request: " + n));
+							return;
+						}
+						demand += n;
+						if (demand < 0)
+							demand = Long.MAX_VALUE;
+						pump();
+					}
+				});
+			}
+
+			@Override
+			public void cancel() {
+				connection.inStream(new Runnable() {
+
+					@Override
+					public void run() {
+						if (done || cancelled)
+							return;
+						// the response closes the connection, see
+						// finishRequest.
+						cancelled = true;
+					}
+				});
+			}
+		};
+
+		private final BufferHandler onChunk = new BufferHandler() {
+
+			@Override
+			public void execute(ByteBuffer data) throws Exception {
+				remaining -= data.remaining();
+				publish(data, remaining == 0);
+			}
+		};
+
+		private final ChunkedDecoder.Handler onDecoded = new ChunkedDecoder.Handler() {
+
+			@Override
+			public void onData(ByteBuffer data) throws Exception {
+				publish(data, false);
+			}
+
+			@Override
+			public void onEnd(HttpHeaders trailers) throws Exception {
+				reading = false;
+				request.trailers = trailers;
+				if (cancelled)
+					return;
+				done = true;
+				complete();
+			}
+
+			@Override
+			public void onError(int status, String reason) throws Exception {
+				reading = false;
+				if (cancelled)
+					return;
+				cancelled = true;
+				subscriber.onError(new IOException(status + " " + reason));
+				close();
+			}
+		};
+
+		BodyPublisher(HttpConnection connection, long length) {
+			this(connection, length, null, null);
+		}
+
+		BodyPublisher(HttpConnection connection, HttpRequest request,
+				ChunkedDecoder decoder) {
+			this(connection, -1, request, decoder);
+		}
+
+		private BodyPublisher(HttpConnection connection, long length,
+				HttpRequest request, ChunkedDecoder decoder) {
+			this.connection = connection;
+			this.remaining = length;
+			this.request = request;
+			this.decoder = decoder;
+			connection.stream.addCloseCallback(new Runnable() {
+
+				@Override
+				public void run() {
+					if (done || cancelled)
+						return;
+					cancelled = true;
+					if (subscriber != null)
+						subscriber.onError(new IOException(
+								"Connection closed before the end of the body"));
+				}
+			});
+		}
+
+		@Override
+		public void subscribe(final Flow.Subscriber<? super ByteBuffer> s) {
+			connection.inStream(new Runnable() {
+
+				@Override
+				public void run() {
+					if (subscriber != null) {
+						s.onSubscribe(new Flow.Subscription() {
+							@Override
+							public void request(long n) {
+							}
+
+							@Override
+							public void cancel() {
+							}
+						});
+						s.onError(new IllegalStateException(
+								"Body already subscribed"));
+						return;
+					}
+					subscriber = s;
+					s.onSubscribe(subscription);
+				}
+			});
+		}
+
+		/**
+		 * True once every byte of the body was published.
+		 * 
+		 * @return
+		 */
+		public boolean isDone() {
+			return done;
+		}
+
+		/**
+		 * Runs the task as application code once the body is complete, after
+		 * onComplete. Used by {@link Web.RequestHandler} to call the HTTP
+		 * method. If nobody subscribed by then the body is read and dropped.
+		 * 
+		 * @param task
+		 */
+		void whenComplete(final Runnable task) {
+			connection.inStream(new Runnable() {
+
+				@Override
+				public void run() {
+					if (subscriber == null)
+						subscribe(new Flow.Subscriber<ByteBuffer>() {
+
+							@Override
+							public void onSubscribe(Flow.Subscription s) {
+								s.request(Long.MAX_VALUE);
+							}
+
+							@Override
+							public void onNext(ByteBuffer item) {
+							}
+
+							@Override
+							public void onError(Throwable e) {
+							}
+
+							@Override
+							public void onComplete() {
+							}
+						});
+					if (done)
+						connection.dispatch(task);
+					else
+						completion = task;
+				}
+			});
+		}
+
+		private void publish(ByteBuffer data, boolean last) {
+			reading = false;
+			if (cancelled)
+				return;
+			demand--;
+			// set before onNext, requests made in it must not read past the
+			// body.
+			done = last;
+			try {
+				subscriber.onNext(data);
+			} catch (Throwable e) {
+				e.printStackTrace();
+				cancelled = true;
+				close();
+				return;
+			}
+			if (!last) {
+				pump();
+				return;
+			}
+			complete();
 		}
 
-		public void finish() throws Exception {
-			assert (request == null);
-			requestFinished = true;
-			if (!stream.writing)
-				finishRequest();
+		private void complete() {
+			subscriber.onComplete();
+			if (completion != null)
+				connection.dispatch(completion);
+		}
 
+		/**
+		 * Reads chunks while there is demand and no read pending. Chunks
+		 * already buffered are handed right away, looping here instead of
+		 * nesting a call per chunk.
+		 */
+		private void pump() {
+			if (pumping)
+				return;
+			pumping = true;
+			try {
+				while (!reading && !done && !cancelled && demand > 0) {
+					reading = true;
+					if (decoder != null)
+						decoder.read(CHUNK_SIZE, onDecoded);
+					else
+						connection.stream.readChunk((int) Math.min(remaining,
+								CHUNK_SIZE), onChunk);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				close();
+			} finally {
+				pumping = false;
+			}
 		}
 
+		private void close() {
+			try {
+				connection.stream.close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	/**
@@ -434,11 +2719,35 @@ public class HttpServer extends EventHandlerAdapter {
 	public static class HttpRequest {
 
 		boolean requestFinished;
+		/**
+		 * The response ends when the connection closes, it has no length.
+		 */
+		volatile boolean closeConnection;
+		/**
+		 * Writes made before the requests pipelined before this one were
+		 * answered, run in its turn. Used by the loop only.
+		 */
+		ArrayDeque<Runnable> held;
+		volatile long heldBytes;
 		String method;
 		String uri;
 		String version = "HTTP/1.0";
 		HttpHeaders headers;
-		String body; // TODO which type?
+		ByteBuffer body;
+		/**
+		 * The body is a buffer of the pool, given back on finish.
+		 */
+		boolean bodyPooled;
+		/**
+		 * Temp file the body was spilled to, closed on finish.
+		 */
+		FileChannel bodyFile;
+		private String bodyString;
+		BodyPublisher bodyPublisher;
+		/**
+		 * Trailer fields of a chunked body.
+		 */
+		volatile HttpHeaders trailers;
 		String remoteIp;
 		String protocol;
 		String host;
@@ -487,22 +2796,145 @@ public class HttpServer extends EventHandlerAdapter {
 			// if values: self.arguments[name] = values
 		}
 
+		public String getMethod() {
+			return method;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+
+		public HttpHeaders getHeaders() {
+			return headers;
+		}
+
 		/**
 		 * Check the version and returns true if its HTTP/1.1
 		 * 
 		 * @return
 		 */
 		public boolean supportsHttp11() {
-			return version.equalsIgnoreCase(version);
+			return "HTTP/1.1".equalsIgnoreCase(version);
 		}
 
 		public void write(byte[] bytes) {
-			connection.write(bytes);
+			connection.write(this, ByteBuffer.wrap(bytes));
+		}
+
+		public void write(ByteBuffer... buffers) {
+			connection.write(this, buffers);
+		}
+
+		/**
+		 * Writes the buffers, then runs the callback, in the thread that runs
+		 * the application, once the socket took them.
+		 * 
+		 * @param buffers
+		 * @param callback
+		 */
+		public void write(ByteBuffer[] buffers, Runnable callback) {
+			connection.write(this, buffers, callback);
+		}
+
+		public void writeFile(FileChannel file, long position, long count) {
+			connection.writeFile(this, file, position, count);
+		}
+
+		/**
+		 * False while the client is slow taking the response. A handler
+		 * producing a large response pauses until {@link #onDrain(Runnable)}.
+		 * 
+		 * <pre>
+		 * void produce() {
+		 * 	while (hasMore()) {
+		 * 		request.write(next());
+		 * 		if (!request.isWritable()) {
+		 * 			request.onDrain(this::produce);
+		 * 			return;
+		 * 		}
+		 * 	}
+		 * 	request.finish();
+		 * }
+		 * </pre>
+		 * 
+		 * @return
+		 */
+		public boolean isWritable() {
+			return connection.isWritable(this);
+		}
+
+		/**
+		 * Runs the task, in the thread that runs the application, once the
+		 * connection is writable again.
+		 * 
+		 * @param task
+		 */
+		public void onDrain(Runnable task) {
+			connection.onDrain(this, task);
+		}
+
+		/**
+		 * The body as read from the client, null if the request had none or
+		 * it is streamed. Large bodies are mapped from a temp file. The bytes
+		 * are given back on finish, they must not be used after it.
+		 * 
+		 * @return a read only view of the bytes
+		 */
+		public ByteBuffer getBody() {
+			return body == null ? null : body.asReadOnlyBuffer();
+		}
+
+		/**
+		 * The body decoded with the charset of the Content-Type, UTF-8 if it
+		 * has none. Decoded on the first call only.
+		 * 
+		 * @return
+		 */
+		public String getBodyString() {
+			if (bodyString == null && body != null)
+				bodyString = charset().decode(body.duplicate()).toString();
+			return bodyString;
+		}
+
+		private Charset charset() {
+			String contentType = headers.get("Content-Type", "");
+			int index = contentType.toLowerCase().indexOf("charset=");
+			if (index != -1) {
+				String name = contentType.substring(index + 8).split(";")[0]
+						.trim().replace("\"", "");
+				try {
+					return Charset.forName(name);
+				} catch (IllegalArgumentException e) {
+					// unknown charset, UTF-8 is the best guess.
+				}
+			}
+			return StandardCharsets.UTF_8;
+		}
+
+		/**
+		 * Trailer fields sent after a chunked body, empty if none, null if
+		 * the body is not chunked or not read yet.
+		 * 
+		 * @return
+		 */
+		public HttpHeaders getTrailers() {
+			return trailers;
+		}
+
+		/**
+		 * The body as it arrives, if the application asked for it with
+		 * {@link StreamingRequestCallback}. Null otherwise, the body is then
+		 * read before the request is executed.
+		 * 
+		 * @return
+		 */
+		public Flow.Publisher<ByteBuffer> getBodyPublisher() {
+			return bodyPublisher;
 		}
 
 		public void finish() {
 			try {
-				connection.finish();
+				connection.finish(this);
 				finishTime = System.currentTimeMillis();
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -1,20 +1,21 @@
 package org.jtornadoweb;
 
 import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.nio.channels.spi.AbstractSelectableChannel;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * 
@@ -22,8 +23,11 @@ import java.util.concurrent.TimeUnit;
  * to be the thread main sin its invoked from there). All other events returned
  * from a poll will be executed in a thread available in the poll.
  * 
- * TODO Another test is to dispatch execution to the pool, only code handled by
- * the user app. All the JTornado code may run in a single thread. Need to test.
+ * An IOLoop created without a pool handles every event in the loop thread.
+ * That is the way to dispatch to a pool only the code handled by the user
+ * app, see {@link HttpServer.ExecutionMode#LOOP}.
+ * 
+ * Each loop measures itself, see {@link #getMetrics()}.
  * 
  * @author paulosuzart@gmail.com
  * 
@@ -37,6 +41,74 @@ public class IOLoop {
 	 */
 	public static int SELECT_TIMEOUT = 3000;
 
+	/**
+	 * Resolution of the timeouts, in milliseconds.
+	 */
+	public static int TIMER_TICK = 10;
+
+	/**
+	 * Number of buckets of the timing wheel.
+	 */
+	public static int TIMER_WHEEL_SIZE = 512;
+
+	/**
+	 * Runs a callback every <b>callbackTime</b> milliseconds in the loop
+	 * thread, until stopped. Same as Tornado's PeriodicCallback.
+	 * 
+	 * <pre>
+	 * PeriodicCallback cleanup = new PeriodicCallback(task, 1000, loop);
+	 * cleanup.start();
+	 * </pre>
+	 */
+	public static class PeriodicCallback implements Runnable {
+		private final Runnable callback;
+		private final long callbackTime;
+		private final IOLoop loop;
+		private volatile boolean running;
+		private volatile TimingWheel.Timeout timeout;
+		private long nextDeadline;
+
+		public PeriodicCallback(Runnable callback, long callbackTime,
+				IOLoop loop) {
+			if (callbackTime <= 0)
+				throw new IllegalArgumentException(
+						"callbackTime must be positive");
+			this.callback = callback;
+			this.callbackTime = callbackTime;
+			this.loop = loop;
+		}
+
+		public void start() {
+			running = true;
+			nextDeadline = System.currentTimeMillis() + callbackTime;
+			timeout = loop.addTimeout(nextDeadline, this);
+		}
+
+		public void stop() {
+			running = false;
+			TimingWheel.Timeout t = timeout;
+			if (t != null)
+				loop.removeTimeout(t);
+		}
+
+		@Override
+		public void run() {
+			if (!running)
+				return;
+			try {
+				callback.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			if (!running)
+				return;
+			// keeps the rate, unless the loop fell behind.
+			long now = System.currentTimeMillis();
+			nextDeadline = Math.max(nextDeadline + callbackTime, now);
+			timeout = loop.addTimeout(nextDeadline, this);
+		}
+	}
+
 	/**
 	 * Receives a SelectionKey and executes its attachment. The attachment
 	 * should be an EventHandler. no check is performed. A class cast exception
@@ -64,13 +136,18 @@ public class IOLoop {
 		private final EventHandler handler;
 		private final int opts;
 		private final SelectableChannel channel;
+		/**
+		 * System.nanoTime() when the task was created, right before being
+		 * given to the pool, 0 if nothing measures it.
+		 */
+		private final long enqueueTime;
 
 		public EventHandlerTask(EventHandler handler, int opts,
 				SelectableChannel channel) {
 			this.handler = handler;
 			this.opts = opts;
 			this.channel = channel;
-
+			this.enqueueTime = timed() ? System.nanoTime() : 0;
 		}
 
 		/*
@@ -80,19 +157,29 @@ public class IOLoop {
 		 */
 		@Override
 		public void run() {
+			long start = enqueueTime != 0 ? System.nanoTime() : 0;
+			CoDel codel = IOLoop.this.codel;
+			if (codel != null && pool != null && start != 0)
+				codel.onDequeue(start - enqueueTime);
 			try {
 				handler.handleEvents(opts, channel);
 			} catch (Exception e) {
 				e.printStackTrace();
+				if (metrics.isEnabled())
+					metrics.onException(e);
 			}
+			if (metrics.isEnabled() && start != 0)
+				metrics.onTask(start - enqueueTime, System.nanoTime() - start);
 		}
 
 	}
 
 	/**
 	 * Receives a Selection Key previously registered for a given selector. At
-	 * the moment of receive, the key will be already canceled if it is not a
-	 * OP_ACCEPT.
+	 * the moment of receive, the interest ops of the key are already cleared if
+	 * it is not a OP_ACCEPT. The key itself stays registered, so the handler
+	 * re-arms its interests with
+	 * {@link IOLoop#updateHandler(SelectableChannel, int)}.
 	 * 
 	 * @author paulosuzart@gmail.com
 	 * 
@@ -122,40 +209,61 @@ public class IOLoop {
 		@Override
 		public void handleEvents(int opts, SelectableChannel channel)
 				throws Exception {
-			switch (opts) {
-			case SelectionKey.OP_READ:
+			// the ready ops may be several at once, e.g. OP_READ | OP_WRITE.
+			if ((opts & SelectionKey.OP_ACCEPT) != 0) {
+				try {
+					_onAccept(channel);
+				} catch (Exception e) {
+					onAcceptError(e, channel);
+				}
+			}
+			if ((opts & SelectionKey.OP_READ) != 0 && channel.isOpen()) {
 				try {
 					onRead(channel);
 				} catch (Exception e) {
 					onReadError(e, channel);
 				}
-				break;
-			case SelectionKey.OP_WRITE:
+			}
+			if ((opts & SelectionKey.OP_WRITE) != 0 && channel.isOpen()) {
 				try {
 					onWrite(channel);
 				} catch (Exception e) {
 					onWriteError(e, channel);
 				}
-				break;
-			case SelectionKey.OP_ACCEPT:
+			}
+		}
+
+		/**
+		 * Accepts every pending connection, until accept returns null. An
+		 * error handling one connection closes only that connection.
+		 * 
+		 * @param channel
+		 * @throws Exception
+		 */
+		private void _onAccept(SelectableChannel channel) throws Exception {
+			SocketChannel clientChannel;
+			while (keepAccepting(channel)
+					&& (clientChannel = ((ServerSocketChannel) channel)
+							.accept()) != null) {
 				try {
-					_onAccept(channel);
+					clientChannel.configureBlocking(false);
+					onAccept(clientChannel);
 				} catch (Exception e) {
-					onAcceptError(e, channel);
+					onAcceptError(e, clientChannel);
 				}
-				break;
-			default:
-				throw new UnsupportedOperationException();
 			}
 
 		}
 
-		private void _onAccept(SelectableChannel channel) throws Exception {
-			SocketChannel clientChannel = ((ServerSocketChannel) channel)
-					.accept();
-			clientChannel.configureBlocking(false);
-			onAccept(clientChannel);
-
+		/**
+		 * Checked before each accept of a batch. Returning false leaves the
+		 * pending connections in the backlog of the server channel.
+		 * 
+		 * @param serverChannel
+		 * @return
+		 */
+		protected boolean keepAccepting(SelectableChannel serverChannel) {
+			return true;
 		}
 
 		protected void onAcceptError(Exception e, SelectableChannel channel) {
@@ -197,13 +305,31 @@ public class IOLoop {
 
 	}
 
+	/**
+	 * A pending change to the selector registrations. Changes requested outside
+	 * the loop thread are queued and applied by the loop right before the next
+	 * select.
+	 */
 	public static class AddHandler {
+		static final int REGISTER = 0;
+		static final int UPDATE = 1;
+		static final int ENABLE = 2;
+		static final int DISABLE = 3;
+		static final int REMOVE = 4;
+
 		EventHandler handler;
 		SelectableChannel chann;
 		int ops;
+		int action;
 
 		public AddHandler(EventHandler handler, SelectableChannel chann,
 				int opts) {
+			this(REGISTER, handler, chann, opts);
+		}
+
+		AddHandler(int action, EventHandler handler, SelectableChannel chann,
+				int opts) {
+			this.action = action;
 			this.handler = handler;
 			this.chann = chann;
 			ops = opts;
@@ -216,12 +342,69 @@ public class IOLoop {
 	private final Selector selector;
 
 	/**
-	 * A pool received from the client of IOLoop.
+	 * A pool received from the client of IOLoop. If null, events are handled
+	 * in the loop thread.
 	 */
 	private final ExecutorService pool;
 
 	private final ConcurrentLinkedQueue<AddHandler> toAdd = new ConcurrentLinkedQueue<AddHandler>();
 
+	/**
+	 * Callbacks to run in the loop thread, see {@link #addCallback(Runnable)}.
+	 */
+	private final ConcurrentLinkedQueue<Runnable> callbacks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * Timeouts added or removed outside the loop thread.
+	 */
+	private final ConcurrentLinkedQueue<TimingWheel.Timeout> toSchedule = new ConcurrentLinkedQueue<TimingWheel.Timeout>();
+
+	private final TimingWheel timeouts = new TimingWheel(TIMER_TICK,
+			TIMER_WHEEL_SIZE, now());
+
+	/**
+	 * When the selector is expected to return by itself, in the clock of the
+	 * timing wheel. A timeout added from another thread before that wakes the
+	 * selector up. Long.MIN_VALUE while the loop is not selecting.
+	 */
+	private volatile long wakeAt = Long.MIN_VALUE;
+
+	/**
+	 * False only while the loop is about to select or selecting. Other
+	 * threads wake the selector up only if they flip it to true, so a burst of
+	 * registrations costs a single wakeup and none at all while the loop is
+	 * busy handling keys.
+	 */
+	private final AtomicBoolean awake = new AtomicBoolean(true);
+
+	/**
+	 * Times the selector was woken up by other threads.
+	 */
+	private final LongAdder wakeups = new LongAdder();
+
+	/**
+	 * Thread running {@link #start()}. Registration changes made from it are
+	 * applied directly, without queueing or waking up the selector.
+	 */
+	private volatile Thread loopThread;
+
+	/**
+	 * Receives the queueing delay of the tasks given to the pool, may be null.
+	 */
+	private volatile CoDel codel;
+
+	/**
+	 * Channels registered in this loop so far.
+	 */
+	private final LongAdder connections = new LongAdder();
+
+	/**
+	 * Ready events handled by this loop so far.
+	 */
+	private final LongAdder events = new LongAdder();
+
+	private final IOLoopMetrics metrics = new IOLoopMetrics(this);
+
 	public IOLoop(ExecutorService pool) throws Exception {
 		this.pool = pool;
 		this.selector = Selector.open();
@@ -234,81 +417,417 @@ public class IOLoop {
 	}
 
 	/**
-	 * Starts the event loop. The default timeout for wait SO response is 2 ms.
+	 * Starts the event loop. Select blocks until the nearest timeout, at most
+	 * {@link #SELECT_TIMEOUT} ms, or indefinitely if there are no timeouts.
 	 * 
 	 * @throws Exception
 	 */
 	public void start() throws Exception {
+		loopThread = Thread.currentThread();
 		while (true) {
 
 			//handlers registered from the previous interation or
 			//any point in time are added before this interation.
 			registerAddHandlers();
+			runCallbacks();
+			scheduleTimeouts();
+			timeouts.expire(now());
 
 			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
 
 			while (iter.hasNext()) {
 				SelectionKey key = iter.next();
 				iter.remove();
+				if (!key.isValid())
+					continue;
 
 				EventHandler attachment = (EventHandler) key.attachment();
 				int readyOps = key.readyOps();
 				SelectableChannel channel = key.channel();
-				boolean acceptable = key.isAcceptable();
-				removeHandler(key);
-
-				if (!acceptable) {
+				events.increment();
+
+				if (!key.isAcceptable()) {
+					// The key stays registered, only its interest is cleared
+					// until the handler asks for it again.
+					try {
+						key.interestOps(0);
+					} catch (CancelledKeyException e) {
+						continue;
+					}
 					EventHandlerTask task = new EventHandlerTask(attachment,
 							readyOps, channel);
-					pool.execute(task);
+					if (pool != null)
+						pool.execute(task);
+					else
+						task.run();
 
 				} else {
-					//ACCEPT will be reattatcher to the ServerSocket channel
+					//ACCEPT interest remains armed on the ServerSocket channel
 					attachment.handleEvents(readyOps, channel);
 				}
 
 			}
 
-			selector.select();
+			select();
 
 		}
 	}
 
 	/**
+	 * Selects with a timeout computed from the nearest timeout.
+	 * 
+	 * @throws IOException
+	 */
+	private void select() throws IOException {
+		scheduleTimeouts();
+		long now = now();
+		long timeout = timeouts.nextTimeout(now);
+		if (timeout > SELECT_TIMEOUT)
+			timeout = SELECT_TIMEOUT;
+		wakeAt = timeout < 0 ? Long.MAX_VALUE : now + timeout;
+		awake.set(false);
+		boolean measure = metrics.isEnabled();
+		long start = measure ? System.nanoTime() : 0;
+		int keys;
+		// work queued before awake was cleared did not wake the selector up.
+		if (timeout == 0 || !toAdd.isEmpty() || !toSchedule.isEmpty()
+				|| !callbacks.isEmpty()) {
+			keys = selector.selectNow();
+		} else if (timeout < 0) {
+			keys = selector.select();
+		} else {
+			keys = selector.select(Math.max(timeout, MIN_SELECT_TIMEOUT));
+		}
+		awake.set(true);
+		if (measure)
+			metrics.onSelect(System.nanoTime() - start, keys);
+		wakeAt = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Wakes the selector up, unless the loop is awake or another thread
+	 * already did it.
+	 */
+	private void wakeup() {
+		if (!awake.get() && awake.compareAndSet(false, true)) {
+			wakeups.increment();
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs the callback in the loop thread, in the next iteration of the
+	 * loop. Callbacks run in the order they were added. May be called from any
+	 * thread.
+	 * 
+	 * @param callback
+	 */
+	public void addCallback(Runnable callback) {
+		callbacks.offer(callback);
+		if (Thread.currentThread() != loopThread)
+			wakeup();
+	}
+
+	/**
+	 * True if the caller is the thread running this loop.
+	 * 
+	 * @return
+	 */
+	public boolean isLoopThread() {
+		return Thread.currentThread() == loopThread;
+	}
+
+	/**
+	 * Runs the callbacks added so far. Callbacks added meanwhile are left for
+	 * the next iteration.
+	 */
+	private void runCallbacks() {
+		for (int i = callbacks.size(); i > 0; i--) {
+			Runnable callback = callbacks.poll();
+			if (callback == null)
+				break;
+			try {
+				callback.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+				if (metrics.isEnabled())
+					metrics.onException(e);
+			}
+		}
+	}
+
+	/**
+	 * Monotonic clock used by the timing wheel, in milliseconds.
+	 * 
+	 * @return
+	 */
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	/**
+	 * Schedules the callback to run in the loop thread at the given deadline,
+	 * in milliseconds as in {@link System#currentTimeMillis()}. May be called
+	 * from any thread.
+	 * 
+	 * @param deadline
+	 * @param callback
+	 * @return the timeout, to be used with
+	 *         {@link #removeTimeout(TimingWheel.Timeout)}
+	 */
+	public TimingWheel.Timeout addTimeout(long deadline, Runnable callback) {
+		long expiration = now() + (deadline - System.currentTimeMillis());
+		TimingWheel.Timeout timeout = new TimingWheel.Timeout(deadline,
+				expiration, callback);
+		if (Thread.currentThread() == loopThread) {
+			timeouts.add(timeout);
+		} else {
+			toSchedule.offer(timeout);
+			if (expiration < wakeAt)
+				wakeup();
+		}
+		return timeout;
+	}
+
+	/**
+	 * Cancels a timeout added with {@link #addTimeout(long, Runnable)}. The
+	 * callback will not run after this call, unless it is already running. May
+	 * be called from any thread.
+	 * 
+	 * @param timeout
+	 */
+	public void removeTimeout(TimingWheel.Timeout timeout) {
+		timeout.cancelled = true;
+		if (Thread.currentThread() == loopThread)
+			timeouts.remove(timeout);
+		else
+			toSchedule.offer(timeout);
+	}
+
+	/**
+	 * Applies timeouts added or removed outside the loop thread.
+	 */
+	private void scheduleTimeouts() {
+		TimingWheel.Timeout timeout;
+		while ((timeout = toSchedule.poll()) != null) {
+			if (timeout.cancelled)
+				timeouts.remove(timeout);
+			else
+				timeouts.add(timeout);
+		}
+	}
+
+	/**
+	 * Starts the event loop in a new thread created by the given factory.
+	 * 
+	 * @param factory
+	 * @return the loop thread
+	 */
+	public Thread startInThread(ThreadFactory factory) {
+		Thread thread = factory.newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					start();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Reports the time each event task waited in the pool to the given CoDel.
+	 * 
+	 * @param codel
+	 */
+	public void setCoDel(CoDel codel) {
+		this.codel = codel;
+	}
+
+	/**
+	 * True if the tasks given to the pool are timed, for the metrics or the
+	 * CoDel. Otherwise nothing reads the clock.
+	 * 
+	 * @return
+	 */
+	private boolean timed() {
+		return metrics.isEnabled() || codel != null && pool != null;
+	}
+
+	/**
+	 * Number of channels registered in this loop since it was created.
+	 * 
+	 * @return
+	 */
+	public long getConnectionCount() {
+		return connections.sum();
+	}
+
+	/**
+	 * Number of ready events handled by this loop since it was created.
+	 * 
+	 * @return
+	 */
+	public long getEventCount() {
+		return events.sum();
+	}
+
+	/**
+	 * Tasks waiting in the queue of the pool, 0 without pool.
+	 * 
+	 * @return
+	 */
+	public int getQueueDepth() {
+		if (pool instanceof ThreadPoolExecutor)
+			return ((ThreadPoolExecutor) pool).getQueue().size();
+		return 0;
+	}
+
+	/**
+	 * Measures of this loop, enabled by default. Use
+	 * {@link IOLoopMetrics#setEnabled(boolean)} to turn them off.
+	 * 
+	 * @return
+	 */
+	public IOLoopMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Number of times other threads woke the selector up.
+	 * 
+	 * @return
+	 */
+	public long getWakeupCount() {
+		return wakeups.sum();
+	}
+
+	/**
+	 * Applies every registration change queued so far, all of them after a
+	 * single wakeup.
+	 * 
 	 * @throws IOException
 	 * @throws ClosedChannelException
 	 */
 	private void registerAddHandlers() throws IOException,
 			ClosedChannelException {
-		Iterator<AddHandler> addIter = toAdd.iterator();
-
-		while (addIter.hasNext()) {
-			AddHandler item = addIter.next();
-			addIter.remove();
+		AddHandler item;
+		while ((item = toAdd.poll()) != null) {
+			apply(item);
+		}
+	}
 
-			if (item.chann.isOpen()) {
-				item.chann.configureBlocking(false);
-				item.chann.register(selector, item.ops, item.handler);
+	/**
+	 * Applies a registration change. Must be called from the loop thread.
+	 * 
+	 * @param item
+	 * @throws IOException
+	 */
+	private void apply(AddHandler item) throws IOException {
+		SelectionKey key = item.chann.keyFor(selector);
+		if (!item.chann.isOpen()) {
+			if (key != null)
+				key.cancel();
+			return;
+		}
+		try {
+			switch (item.action) {
+			case AddHandler.REGISTER:
+				if (key == null) {
+					item.chann.configureBlocking(false);
+					item.chann.register(selector, item.ops, item.handler);
+					connections.increment();
+				} else {
+					key.attach(item.handler);
+					key.interestOps(item.ops);
+				}
+				break;
+			case AddHandler.UPDATE:
+				if (key != null)
+					key.interestOps(item.ops);
+				break;
+			case AddHandler.ENABLE:
+				if (key != null)
+					key.interestOps(key.interestOps() | item.ops);
+				break;
+			case AddHandler.DISABLE:
+				if (key != null)
+					key.interestOps(key.interestOps() & ~item.ops);
+				break;
+			case AddHandler.REMOVE:
+				if (key != null)
+					key.cancel();
+				break;
 			}
+		} catch (CancelledKeyException e) {
+			// channel closed meanwhile, nothing left to change.
+		}
+	}
+
+	/**
+	 * Applies the change right away if the caller is the loop thread,
+	 * otherwise queues it for the next iteration and wakes the selector up if
+	 * it is sleeping.
+	 * 
+	 * @param item
+	 * @throws Exception
+	 */
+	private void submit(AddHandler item) throws Exception {
+		if (Thread.currentThread() == loopThread) {
+			apply(item);
+		} else {
+			toAdd.offer(item);
+			wakeup();
+		}
+	}
+
+	/**
+	 * True if the key of the channel is valid and interested in any of the
+	 * given ops, i.e. the handler is waiting for them.
+	 * 
+	 * @param channel
+	 * @param ops
+	 * @return
+	 */
+	boolean hasInterest(SelectableChannel channel, int ops) {
+		SelectionKey key = channel.keyFor(selector);
+		try {
+			return key != null && key.isValid() && (key.interestOps() & ops) != 0;
+		} catch (CancelledKeyException e) {
+			return false;
 		}
 	}
 
 	/**
-	 * Every handler will be invoked once. If the handler has the interest to
-	 * keep informed about changes on its channels, thei mus register again see
-	 * {@link IOLoop#addHandler(AbstractSelectableChannel, EventHandler, int)}
+	 * Cancels the key. The channel will no longer be selected until it is
+	 * added again with
+	 * {@link IOLoop#addHandler(SelectableChannel, EventHandler, int)}.
 	 * 
 	 * @param key
 	 */
 	public void removeHandler(SelectionKey key) {
 		key.cancel();
+	}
 
-		// key.attach(null);
-		// this.handlers.remove(key);
+	/**
+	 * Same as {@link #removeHandler(SelectionKey)} for the key of the given
+	 * channel.
+	 * 
+	 * @param channel
+	 * @throws Exception
+	 */
+	public void removeHandler(SelectableChannel channel) throws Exception {
+		submit(new AddHandler(AddHandler.REMOVE, null, channel, 0));
 	}
 
 	/**
-	 * Registers the given channel to the current selector.
+	 * Registers the given channel to the current selector. If the channel is
+	 * already registered, its handler and interest ops are replaced, the key
+	 * is kept.
 	 * <p>
 	 * <b>Note:</b> The channel is put in non block mode.
 	 * </p>
@@ -320,19 +839,45 @@ public class IOLoop {
 	 */
 	public void addHandler(SelectableChannel channel,
 			EventHandler eventHandler, int opts) throws Exception {
-		toAdd.offer(new AddHandler(eventHandler, channel, opts));
-		selector.wakeup();
-
-		// channel.configureBlocking(false);
-		// if (channel.isRegistered()) {
-		// if (channel.keyFor(selector).isValid()) {
-		// selector.wakeup();
-		// channel.register(selector, opts, eventHandler);
-		// }
-		//
-		// } else {
-		// channel.register(selector, opts, eventHandler);
-		// }
+		submit(new AddHandler(eventHandler, channel, opts));
+	}
 
+	/**
+	 * Sets the interest ops of a channel previously added with
+	 * {@link #addHandler(SelectableChannel, EventHandler, int)}. Only the
+	 * interest of the long lived key is changed, nothing is registered again.
+	 * 
+	 * @param channel
+	 * @param opts
+	 * @throws Exception
+	 */
+	public void updateHandler(SelectableChannel channel, int opts)
+			throws Exception {
+		submit(new AddHandler(AddHandler.UPDATE, null, channel, opts));
+	}
+
+	/**
+	 * Adds the given ops to the current interest of the channel.
+	 * 
+	 * @param channel
+	 * @param opts
+	 * @throws Exception
+	 */
+	public void enableOps(SelectableChannel channel, int opts)
+			throws Exception {
+		submit(new AddHandler(AddHandler.ENABLE, null, channel, opts));
+	}
+
+	/**
+	 * Removes the given ops from the current interest of the channel. The key
+	 * stays registered.
+	 * 
+	 * @param channel
+	 * @param opts
+	 * @throws Exception
+	 */
+	public void disableOps(SelectableChannel channel, int opts)
+			throws Exception {
+		submit(new AddHandler(AddHandler.DISABLE, null, channel, opts));
 	}
 }
@@ -0,0 +1,342 @@
+package org.jtornadoweb;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of an {@link IOLoop}: duration of select, keys selected per
+ * iteration, wakeups, registrations, depth of the queue of the pool, time the
+ * event tasks waited in the queue and took to run, and exceptions by type.
+ * <p>
+ * Counters are LongAdders and the histograms have power of two buckets, so
+ * recording takes no lock. Disabled, nothing is recorded and the clock is
+ * read only to time the tasks for a {@link CoDel}, if one is set.
+ * Values can be read with the getters, through JMX once
+ * {@link #registerMBean(String)} is called, or pushed to a {@link Listener}.
+ * </p>
+ *
+ * <pre>
+ * loop.getMetrics().addListener(new IOLoopMetrics.ListenerAdapter() {
+ * 	public void onTask(IOLoop loop, long waitNanos, long runNanos) {
+ * 		collector.record(waitNanos, runNanos);
+ * 	}
+ * });
+ * </pre>
+ */
+public class IOLoopMetrics implements IOLoopMetricsMXBean {
+
+	/**
+	 * Receives every measure as it is taken, in the thread that took it. Must
+	 * be fast and must not throw.
+	 */
+	public static interface Listener {
+
+		/**
+		 * A select returned.
+		 *
+		 * @param loop
+		 * @param nanos
+		 *            time blocked in select.
+		 * @param keys
+		 *            keys selected.
+		 */
+		void onSelect(IOLoop loop, long nanos, int keys);
+
+		/**
+		 * A task finished.
+		 *
+		 * @param loop
+		 * @param waitNanos
+		 *            time between being queued and starting.
+		 * @param runNanos
+		 *            time running.
+		 */
+		void onTask(IOLoop loop, long waitNanos, long runNanos);
+
+		/**
+		 * A handler, callback or task failed.
+		 *
+		 * @param loop
+		 * @param e
+		 */
+		void onException(IOLoop loop, Throwable e);
+	}
+
+	/**
+	 * Does nothing, override what is needed.
+	 */
+	public static class ListenerAdapter implements Listener {
+
+		@Override
+		public void onSelect(IOLoop loop, long nanos, int keys) {
+		}
+
+		@Override
+		public void onTask(IOLoop loop, long waitNanos, long runNanos) {
+		}
+
+		@Override
+		public void onException(IOLoop loop, Throwable e) {
+		}
+	}
+
+	/**
+	 * Log2 histogram, bucket i counts values with i significant bits.
+	 */
+	public static class Histogram {
+		private final LongAdder[] buckets = new LongAdder[64];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+
+		public Histogram() {
+			for (int i = 0; i < buckets.length; i++)
+				buckets[i] = new LongAdder();
+		}
+
+		public void record(long value) {
+			if (value < 0)
+				value = 0;
+			buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+			count.increment();
+			sum.add(value);
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public double getMean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+
+		/**
+		 * Upper bound of the bucket holding the given quantile, 0 if empty.
+		 *
+		 * @param quantile
+		 *            between 0 and 1.
+		 * @return
+		 */
+		public long getPercentile(double quantile) {
+			long[] counts = new long[buckets.length];
+			long total = 0;
+			for (int i = 0; i < counts.length; i++)
+				total += counts[i] = buckets[i].sum();
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank && counts[i] > 0)
+					return i == 0 ? 0 : (i == 63 ? Long.MAX_VALUE
+							: (1L << i) - 1);
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+
+	private final IOLoop loop;
+
+	private volatile boolean enabled = true;
+
+	private final LongAdder selects = new LongAdder();
+	private final LongAdder selectNanos = new LongAdder();
+	private final LongAdder selectedKeys = new LongAdder();
+	private final Histogram taskWait = new Histogram();
+	private final Histogram taskRun = new Histogram();
+	private final LongAdder exceptions = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> exceptionsByType = new ConcurrentHashMap<String, LongAdder>();
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	IOLoopMetrics(IOLoop loop) {
+		this.loop = loop;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Turns the measures off, or back on. Counters kept by the loop itself
+	 * (wakeups, registrations, events) are always on.
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	void onSelect(long nanos, int keys) {
+		selects.increment();
+		selectNanos.add(nanos);
+		selectedKeys.add(keys);
+		for (Listener listener : listeners)
+			listener.onSelect(loop, nanos, keys);
+	}
+
+	void onTask(long waitNanos, long runNanos) {
+		taskWait.record(waitNanos);
+		taskRun.record(runNanos);
+		for (Listener listener : listeners)
+			listener.onTask(loop, waitNanos, runNanos);
+	}
+
+	void onException(Throwable e) {
+		exceptions.increment();
+		String type = e.getClass().getName();
+		LongAdder count = exceptionsByType.get(type);
+		if (count == null) {
+			LongAdder previous = exceptionsByType.putIfAbsent(type,
+					count = new LongAdder());
+			if (previous != null)
+				count = previous;
+		}
+		count.increment();
+		for (Listener listener : listeners)
+			listener.onException(loop, e);
+	}
+
+	/**
+	 * Publishes these metrics in the platform MBean server as
+	 * org.jtornadoweb:type=IOLoop,name=<b>name</b>.
+	 *
+	 * @param name
+	 * @return the name registered
+	 * @throws Exception
+	 */
+	public ObjectName registerMBean(String name) throws Exception {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName("org.jtornadoweb:type=IOLoop,name="
+				+ ObjectName.quote(name));
+		server.registerMBean(this, objectName);
+		return objectName;
+	}
+
+	@Override
+	public long getSelectCount() {
+		return selects.sum();
+	}
+
+	@Override
+	public long getSelectTimeMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(selectNanos.sum());
+	}
+
+	@Override
+	public double getMeanSelectMicros() {
+		long n = selects.sum();
+		return n == 0 ? 0 : selectNanos.sum() / 1000.0 / n;
+	}
+
+	@Override
+	public long getSelectedKeys() {
+		return selectedKeys.sum();
+	}
+
+	@Override
+	public double getMeanKeysPerSelect() {
+		long n = selects.sum();
+		return n == 0 ? 0 : (double) selectedKeys.sum() / n;
+	}
+
+	@Override
+	public long getWakeupCount() {
+		return loop.getWakeupCount();
+	}
+
+	@Override
+	public long getRegistrationCount() {
+		return loop.getConnectionCount();
+	}
+
+	@Override
+	public long getEventCount() {
+		return loop.getEventCount();
+	}
+
+	@Override
+	public int getQueueDepth() {
+		return loop.getQueueDepth();
+	}
+
+	public Histogram getTaskWait() {
+		return taskWait;
+	}
+
+	public Histogram getTaskRun() {
+		return taskRun;
+	}
+
+	@Override
+	public long getTaskCount() {
+		return taskRun.getCount();
+	}
+
+	@Override
+	public double getMeanTaskWaitMicros() {
+		return taskWait.getMean() / 1000;
+	}
+
+	@Override
+	public long getTaskWaitP50Micros() {
+		return micros(taskWait.getPercentile(0.5));
+	}
+
+	@Override
+	public long getTaskWaitP99Micros() {
+		return micros(taskWait.getPercentile(0.99));
+	}
+
+	@Override
+	public double getMeanTaskRunMicros() {
+		return taskRun.getMean() / 1000;
+	}
+
+	@Override
+	public long getTaskRunP50Micros() {
+		return micros(taskRun.getPercentile(0.5));
+	}
+
+	@Override
+	public long getTaskRunP99Micros() {
+		return micros(taskRun.getPercentile(0.99));
+	}
+
+	private static long micros(long nanos) {
+		return nanos == Long.MAX_VALUE ? Long.MAX_VALUE : TimeUnit.NANOSECONDS
+				.toMicros(nanos);
+	}
+
+	@Override
+	public long getExceptionCount() {
+		return exceptions.sum();
+	}
+
+	@Override
+	public Map<String, Long> getExceptionsByType() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> e : exceptionsByType.entrySet())
+			result.put(e.getKey(), e.getValue().sum());
+		return Collections.unmodifiableMap(result);
+	}
+}
@@ -0,0 +1,50 @@
+package org.jtornadoweb;
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link IOLoopMetrics}. Times are in microseconds,
+ * percentiles are upper bounds of power of two buckets.
+ */
+public interface IOLoopMetricsMXBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	long getSelectCount();
+
+	long getSelectTimeMicros();
+
+	double getMeanSelectMicros();
+
+	long getSelectedKeys();
+
+	double getMeanKeysPerSelect();
+
+	long getWakeupCount();
+
+	long getRegistrationCount();
+
+	long getEventCount();
+
+	int getQueueDepth();
+
+	long getTaskCount();
+
+	double getMeanTaskWaitMicros();
+
+	long getTaskWaitP50Micros();
+
+	long getTaskWaitP99Micros();
+
+	double getMeanTaskRunMicros();
+
+	long getTaskRunP50Micros();
+
+	long getTaskRunP99Micros();
+
+	long getExceptionCount();
+
+	Map<String, Long> getExceptionsByType();
+}
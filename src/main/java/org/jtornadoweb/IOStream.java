@@ -1,37 +1,249 @@
 package org.jtornadoweb;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.jtornadoweb.IOLoop.EventHandler;
 
 public class IOStream implements EventHandler {
 
-	static interface StreamHandler {
+	public static interface StreamHandler {
 		public void execute(String data) throws Exception;
 	}
 
+	/**
+	 * Receives bytes as they are, without decoding. The buffer is a heap
+	 * copy owned by the handler.
+	 */
+	public static interface BufferHandler {
+		public void execute(ByteBuffer data) throws Exception;
+	}
+
+	/**
+	 * Finds the end of a message in the bytes read, a byte at a time, keeping
+	 * its state between reads. Used by
+	 * {@link IOStream#readUntil(Scanner, BufferHandler)}.
+	 */
+	public static interface Scanner {
+
+		/**
+		 * Scans the bytes between <b>start</b> and <b>end</b> (absolute
+		 * indexes) of the buffer, the next ones after those given before.
+		 * 
+		 * @param buffer
+		 * @param start
+		 * @param end
+		 * @return index after the last byte of the message, or -1 if it goes
+		 *         on in the next bytes
+		 */
+		public int scan(ByteBuffer buffer, int start, int end);
+	}
+
+	/**
+	 * Maximum number of buffers given to a single gathering write.
+	 */
+	public static int MAX_GATHER = 64;
+
+	/**
+	 * Default watermarks, see {@link #setWriteWatermarks(long, long)}.
+	 */
+	public static long DEFAULT_LOW_WATERMARK = 32 * 1024;
+	public static long DEFAULT_HIGH_WATERMARK = 64 * 1024;
+
 	private static Charset charSet = Charset.forName("UTF-8");
 	private final SocketChannel client;
 	private final int maxBufferSize;
 	private final int readChunckSize;
-	private final ByteBuffer readBuffer;
-	private final ByteBuffer writeBuffer;
-	private final CharBuffer stream;
-	private String delimiter;
+	/**
+	 * Arena the buffers of every stream are leased from.
+	 */
+	private static final BufferPool pool = BufferPool.getDefault();
+
+	/**
+	 * Bytes read from the client and not consumed yet.
+	 */
+	private final ChainedBuffer readBuffer;
+	/**
+	 * Where the search for the delimiter resumes, unread bytes before it were
+	 * already scanned.
+	 */
+	private int scanPos;
+	/**
+	 * A range of a file waiting to be sent with
+	 * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}.
+	 */
+	private static class FileRegion {
+		final FileChannel file;
+		final boolean close;
+		long position;
+		long count;
+
+		FileRegion(FileChannel file, long position, long count, boolean close) {
+			this.file = file;
+			this.position = position;
+			this.count = count;
+			this.close = close;
+		}
+
+		/**
+		 * Sends as much as the socket takes.
+		 * 
+		 * @param client
+		 * @return true if the whole region was sent
+		 * @throws IOException
+		 */
+		boolean transferTo(SocketChannel client) throws IOException {
+			while (count > 0) {
+				long sent = file.transferTo(position, count, client);
+				if (sent <= 0) {
+					if (position >= file.size())
+						throw new IOException("File truncated while sent");
+					return false;
+				}
+				position += sent;
+				count -= sent;
+			}
+			return true;
+		}
+
+		void release() {
+			if (!close)
+				return;
+			try {
+				file.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * ByteBuffers and FileRegions waiting to be written, in order. The first
+	 * one may be partially written.
+	 */
+	private final ArrayDeque<Object> writeQueue = new ArrayDeque<Object>(2);
+	/**
+	 * Array handed to the gathering writes, one per thread instead of one per
+	 * stream.
+	 */
+	private static final ThreadLocal<ByteBuffer[]> gathers = new ThreadLocal<ByteBuffer[]>();
+	/**
+	 * Bytes of the buffers in the write queue not written yet. File regions
+	 * are not counted, they hold no memory.
+	 */
+	private volatile long pendingBytes;
+	private long lowWatermark = DEFAULT_LOW_WATERMARK;
+	private long highWatermark = DEFAULT_HIGH_WATERMARK;
+	private volatile boolean writable = true;
+	private Runnable drainCallback;
+	private byte[] delimiter;
+	private Scanner scanner;
 	private StreamHandler callback;
+	/**
+	 * Pending binary read, same as callback but without decoding.
+	 */
+	private BufferHandler bufferCallback;
 	private IOLoop loop;
-	private final CharBuffer streamRead;
 	boolean writing;
 	boolean closing;
 	boolean closed;
-	private StreamHandler writeCallback;
+	private Runnable writeCallback;
 	private int amount;
+	/**
+	 * Pending {@link #readChunk(int, BufferHandler)}.
+	 */
+	private BufferHandler chunkCallback;
+	private int chunkSize;
+	/**
+	 * Pending readInto, to a buffer or to a channel.
+	 */
+	private Runnable intoCallback;
+	private ByteBuffer intoBuffer;
+	private WritableByteChannel intoChannel;
+	private long intoRemaining;
+	/**
+	 * Interest ops this stream wants from the loop. Changes made while the
+	 * stream is handling events are pushed once, at the end of handleEvents.
+	 */
+	private int state;
+	private boolean registered;
+	private boolean handling;
+	/**
+	 * Idle timeouts in milliseconds, 0 means no timeout.
+	 */
+	private long readTimeout;
+	private long writeTimeout;
+	private final IdleTimeout readIdle = new IdleTimeout(SelectionKey.OP_READ);
+	private final IdleTimeout writeIdle = new IdleTimeout(SelectionKey.OP_WRITE);
+	private final List<Runnable> closeCallbacks = new ArrayList<Runnable>(1);
+
+	/**
+	 * Closes the stream if it waited for the op past its deadline. Added to
+	 * the loop once, the first time the stream waits for the op: events
+	 * only move the deadline, and an expiry before it, or while the stream
+	 * is not waiting, adds the timeout again. Runs in the loop thread.
+	 */
+	private class IdleTimeout implements Runnable {
+		private final int op;
+		private final AtomicBoolean armed = new AtomicBoolean();
+		private volatile long deadline;
+		private volatile TimingWheel.Timeout timeout;
+
+		IdleTimeout(int op) {
+			this.op = op;
+		}
+
+		/**
+		 * Restarts the wait for the op.
+		 * 
+		 * @param now
+		 * @param millis
+		 */
+		void restart(long now, long millis) {
+			deadline = now + millis;
+			if (armed.compareAndSet(false, true))
+				timeout = loop.addTimeout(deadline, this);
+		}
+
+		void cancel() {
+			TimingWheel.Timeout timeout = this.timeout;
+			if (timeout != null)
+				loop.removeTimeout(timeout);
+		}
+
+		@Override
+		public void run() {
+			if (closed)
+				return;
+			long now = System.currentTimeMillis();
+			if (now < deadline || !loop.hasInterest(client, op)) {
+				long millis = op == SelectionKey.OP_READ ? readTimeout
+						: writeTimeout;
+				timeout = loop.addTimeout(Math.max(deadline, now + millis),
+						this);
+				return;
+			}
+			try {
+				// pending bytes will never leave, do not wait for them.
+				writing = false;
+				clearWriteQueue();
+				close();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+	}
 
 	public IOStream(SocketChannel client, IOLoop loop) {
 		this.client = client;
@@ -41,15 +253,13 @@ public class IOStream implements EventHandler {
 		}
 		this.maxBufferSize = 104857600;
 		this.readChunckSize = 8192;
-		this.readBuffer = ByteBuffer.allocate(readChunckSize);
-		this.stream = CharBuffer.allocate(readChunckSize);
-		// TODO remove this additional buffer.
-		this.streamRead = stream.duplicate();
-		this.writeBuffer = ByteBuffer.allocateDirect(readChunckSize);
+		this.readBuffer = new ChainedBuffer(pool, readChunckSize,
+				maxBufferSize);
 	}
 
 	/**
-	 * Invoke the callback if the given delimiter is found.
+	 * Invoke the callback with the data up to and including the given
+	 * delimiter, as soon as it is found.
 	 * 
 	 * @param delimiter
 	 * @param callback
@@ -57,21 +267,26 @@ public class IOStream implements EventHandler {
 	 */
 	public void readUntil(String delimiter, StreamHandler callback)
 			throws Exception {
-
-		String found = find(delimiter);
-		if (found.length() > 0) {
-			try {
-				callback.execute(found);
-			} catch (Exception e) {
-				close();
-			}
-			return;
-		}
-		checkClosed();
-		this.delimiter = delimiter;
+		assert !reading();
+		this.delimiter = delimiter.getBytes(charSet);
 		this.callback = callback;
-		this.loop.addHandler(client, this, SelectionKey.OP_READ);
+		read();
+	}
 
+	/**
+	 * Same as {@link #readUntil(String, StreamHandler)}, the bytes handed as
+	 * they are.
+	 * 
+	 * @param delimiter
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void readUntil(byte[] delimiter, BufferHandler callback)
+			throws Exception {
+		assert !reading();
+		this.delimiter = delimiter;
+		this.bufferCallback = callback;
+		read();
 	}
 
 	/**
@@ -83,21 +298,225 @@ public class IOStream implements EventHandler {
 	 * @throws Exception
 	 */
 	public void readBytes(int amount, StreamHandler callback) throws Exception {
-		byte[] _bytes = new byte[amount];
-		ByteBuffer dupReadBuffer = readBuffer.duplicate();
-		dupReadBuffer.position(streamRead.position());
-		dupReadBuffer.get(_bytes);
-		String data = new String(_bytes);
-		if (data.trim().length() == 0) {
-			// TODO it's not safe to say that all requested date were read.
-			assert this.callback == null;
-			this.amount = amount;
-			this.callback = callback;
-			loop.addHandler(client, this, SelectionKey.OP_READ);
+		assert !reading();
+		this.amount = amount;
+		this.callback = callback;
+		read();
+	}
+
+	/**
+	 * Invokes the callback with the bytes up to the end found by the scanner.
+	 * The bytes are scanned where they were read, once, and copied only when
+	 * the message is complete.
+	 * 
+	 * @param scanner
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void readUntil(Scanner scanner, BufferHandler callback)
+			throws Exception {
+		assert !reading();
+		this.scanner = scanner;
+		this.bufferCallback = callback;
+		read();
+	}
+
+	/**
+	 * Same as {@link #readBytes(int, StreamHandler)}, the bytes handed as they
+	 * are.
+	 * 
+	 * @param amount
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void readBytesInto(int amount, BufferHandler callback)
+			throws Exception {
+		assert !reading();
+		this.amount = amount;
+		this.bufferCallback = callback;
+		read();
+	}
+
+	/**
+	 * Reads whatever arrives first, at most <b>maxBytes</b>. The callback gets
+	 * a copy of the bytes, it may keep it. Nothing is read from the socket
+	 * while no read is pending, so a consumer calling this only when ready
+	 * for more data throttles the client through TCP flow control.
+	 * 
+	 * @param maxBytes
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void readChunk(int maxBytes, BufferHandler callback)
+			throws Exception {
+		assert !reading();
+		this.chunkSize = maxBytes;
+		this.chunkCallback = callback;
+		read();
+	}
+
+	/**
+	 * Reads until the buffer is full, then runs the callback. The bytes are
+	 * moved from the read chunks straight to the buffer, a pooled one for
+	 * instance, like tornado's read_into.
+	 * 
+	 * @param buffer
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void readInto(ByteBuffer buffer, Runnable callback)
+			throws Exception {
+		assert !reading();
+		this.intoBuffer = buffer;
+		this.intoCallback = callback;
+		read();
+	}
+
+	/**
+	 * Reads <b>count</b> bytes into the channel, then runs the callback. The
+	 * bytes are written as they arrive, so the stream holds no more than a
+	 * read of them at a time. The channel must be blocking, a file for
+	 * instance.
+	 * 
+	 * @param channel
+	 * @param count
+	 * @param callback
+	 * @throws Exception
+	 */
+	public void readInto(WritableByteChannel channel, long count,
+			Runnable callback) throws Exception {
+		assert !reading();
+		this.intoChannel = channel;
+		this.intoRemaining = count;
+		this.intoCallback = callback;
+		read();
+	}
+
+	/**
+	 * Serves the pending read from the buffer, or waits for the socket.
+	 * 
+	 * @throws Exception
+	 */
+	private void read() throws Exception {
+		if (readFromBuffer())
+			return;
+		checkClosed();
+		addIOState(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * True while a read waits for data.
+	 * 
+	 * @return
+	 */
+	private boolean reading() {
+		return callback != null || bufferCallback != null
+				|| chunkCallback != null || intoCallback != null;
+	}
+
+	/**
+	 * Runs the pending read callback if the buffered bytes satisfy it.
+	 * 
+	 * @return true if the callback was executed
+	 * @throws Exception
+	 */
+	private boolean readFromBuffer() throws Exception {
+		int length;
+		if (delimiter != null) {
+			int index = readBuffer.indexOf(delimiter, scanPos);
+			if (index == -1) {
+				// a delimiter split between reads starts in the last bytes.
+				scanPos = Math.max(0, readBuffer.size() - delimiter.length + 1);
+				return false;
+			}
+			length = index + delimiter.length;
+			delimiter = null;
+		} else if (scanner != null) {
+			int end = readBuffer.scan(scanner, scanPos);
+			if (end == -1) {
+				scanPos = readBuffer.size();
+				return false;
+			}
+			length = end;
+			scanner = null;
+		} else if (amount > 0) {
+			if (readBuffer.size() < amount)
+				return false;
+			length = amount;
+			amount = 0;
+		} else if (intoCallback != null) {
+			return readIntoFromBuffer();
+		} else if (chunkCallback != null) {
+			if (readBuffer.size() == 0)
+				return false;
+			BufferHandler cback = chunkCallback;
+			chunkCallback = null;
+			ByteBuffer data = readBuffer.consume(Math.min(chunkSize,
+					readBuffer.size()));
+			try {
+				cback.execute(data);
+			} catch (Exception e) {
+				e.printStackTrace();
+				close();
+			}
+			return true;
 		} else {
-			readBuffer.position(dupReadBuffer.position());
-			callback.execute(data);
+			return false;
+		}
+		StreamHandler cback = callback;
+		BufferHandler bufferCback = bufferCallback;
+		callback = null;
+		bufferCallback = null;
+		scanPos = 0;
+		try {
+			if (bufferCback != null)
+				bufferCback.execute(readBuffer.consume(length));
+			else
+				cback.execute(readBuffer.consume(length, charSet));
+		} catch (Exception e) {
+			e.printStackTrace();
+			close();
+		}
+		return true;
+	}
+
+
+	/**
+	 * Moves the buffered bytes to the target of the pending readInto, running
+	 * its callback once it has them all.
+	 * 
+	 * @return true if the callback was executed
+	 * @throws Exception
+	 */
+	private boolean readIntoFromBuffer() throws Exception {
+		try {
+			if (intoBuffer != null) {
+				readBuffer.transferTo(intoBuffer);
+				if (intoBuffer.hasRemaining())
+					return false;
+			} else {
+				intoRemaining -= readBuffer.transferTo(intoChannel,
+						intoRemaining);
+				if (intoRemaining > 0)
+					return false;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			intoCallback = null;
+			close();
+			return false;
+		}
+		Runnable cback = intoCallback;
+		intoCallback = null;
+		intoBuffer = null;
+		intoChannel = null;
+		try {
+			cback.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			close();
 		}
+		return true;
 	}
 
 	private void checkClosed() {
@@ -107,159 +526,501 @@ public class IOStream implements EventHandler {
 
 	}
 
+	IOLoop getLoop() {
+		return loop;
+	}
+
 	public int getMaxBufferSize() {
 		return maxBufferSize;
 	}
 
+	/**
+	 * Runs the callback once, when the stream is closed. Replaces the
+	 * callbacks set or added before.
+	 * 
+	 * @param callback
+	 */
+	public void setCloseCallback(Runnable callback) {
+		closeCallbacks.clear();
+		closeCallbacks.add(callback);
+	}
+
+	/**
+	 * Runs the callback once, when the stream is closed, after the ones
+	 * already set or added.
+	 * 
+	 * @param callback
+	 */
+	public void addCloseCallback(Runnable callback) {
+		closeCallbacks.add(callback);
+	}
+
+	/**
+	 * Closes the stream if no bytes arrive for <b>millis</b> while a read is
+	 * pending. 0 disables the timeout.
+	 * 
+	 * @param millis
+	 */
+	public void setReadTimeout(long millis) {
+		this.readTimeout = millis;
+	}
+
+	/**
+	 * Closes the stream if the client takes no bytes for <b>millis</b> while
+	 * a write is pending. 0 disables the timeout.
+	 * 
+	 * @param millis
+	 */
+	public void setWriteTimeout(long millis) {
+		this.writeTimeout = millis;
+	}
+
+	/**
+	 * The stream stops being writable once <b>high</b> bytes are pending, and
+	 * is writable again once they drop to <b>low</b>. A producer checks
+	 * {@link #isWritable()} and pauses until {@link #onDrain(Runnable)}, so
+	 * a slow client holds about <b>high</b> bytes of memory and not the whole
+	 * response.
+	 * 
+	 * @param low
+	 * @param high
+	 */
+	public void setWriteWatermarks(long low, long high) {
+		if (low < 0 || low > high)
+			throw new IllegalArgumentException("low " + low + " high " + high);
+		this.lowWatermark = low;
+		this.highWatermark = high;
+		updateWritable();
+	}
+
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+
+	/**
+	 * Bytes of the read buffers held by this stream, 0 while nothing is
+	 * buffered: an idle stream holds no buffer. Read it from the thread
+	 * handling the stream.
+	 * 
+	 * @return
+	 */
+	public long getRetainedBytes() {
+		return readBuffer.capacity();
+	}
+
+	/**
+	 * Bytes written and not taken by the client yet. May be read by any
+	 * thread.
+	 * 
+	 * @return
+	 */
+	public long getPendingBytes() {
+		return pendingBytes;
+	}
+
+	/**
+	 * False from the moment the pending bytes reach the high watermark until
+	 * they drop to the low watermark. May be read by any thread.
+	 * 
+	 * @return
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Runs the callback once, when the stream is writable: right away if it
+	 * is, or when the pending bytes drop to the low watermark. Replaces the
+	 * callback set before, if it did not run yet.
+	 * 
+	 * @param callback
+	 */
+	public void onDrain(Runnable callback) {
+		if (writable) {
+			drainCallback = null;
+			runDrain(callback);
+		} else {
+			drainCallback = callback;
+		}
+	}
+
+	/**
+	 * Updates the writable flag to the pending bytes, running the drain
+	 * callback if the stream becomes writable.
+	 */
+	private void updateWritable() {
+		if (writable) {
+			if (pendingBytes >= highWatermark)
+				writable = false;
+		} else if (pendingBytes <= lowWatermark) {
+			writable = true;
+			Runnable callback = drainCallback;
+			drainCallback = null;
+			if (callback != null)
+				runDrain(callback);
+		}
+	}
+
+	private void runDrain(Runnable callback) {
+		try {
+			callback.run();
+		} catch (Exception e) {
+			e.printStackTrace();
+			try {
+				close();
+			} catch (Exception _e) {
+				_e.printStackTrace();
+			}
+		}
+	}
+
 	public void write(String data) {
-		write(data.getBytes(), null);
+		write(new ByteBuffer[] { ByteBuffer.wrap(data.getBytes()) },
+				(Runnable) null);
 	}
 
 	public void write(byte[] bytes, StreamHandler handler) {
+		write(new ByteBuffer[] { ByteBuffer.wrap(bytes) }, handler);
+	}
+
+	/**
+	 * Same as {@link #write(ByteBuffer[], Runnable)}, the handler called with
+	 * an empty string.
+	 * 
+	 * @param buffers
+	 * @param handler
+	 */
+	public void write(ByteBuffer[] buffers, StreamHandler handler) {
+		write(buffers, completion(handler));
+	}
+
+	/**
+	 * Queues the remaining bytes of the buffers and writes as much as the
+	 * socket takes right away, all buffers in a single gathering write. The
+	 * rest is written as the socket drains. The handler runs once every
+	 * queued byte is written, replacing the handler of previous writes. The
+	 * buffers must not be changed until then.
+	 * 
+	 * @param buffers
+	 * @param handler
+	 */
+	public void write(ByteBuffer[] buffers, Runnable handler) {
 		checkClosed();
+		long bytes = 0;
+		for (ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				writeQueue.addLast(buffer);
+				bytes += buffer.remaining();
+			}
+		}
+		pendingBytes += bytes;
+		updateWritable();
+		flush(handler);
+	}
+
+	/**
+	 * Sends <b>count</b> bytes of the file, starting at <b>position</b>, after
+	 * the bytes already queued. The kernel copies them from the file to the
+	 * socket (sendfile), they never go through the heap. The handler runs once
+	 * every queued byte is written, as in
+	 * {@link #write(ByteBuffer[], Runnable)}. The file stays open.
+	 * 
+	 * @param file
+	 * @param position
+	 * @param count
+	 * @param handler
+	 * @throws IOException
+	 */
+	public void writeFile(FileChannel file, long position, long count,
+			Runnable handler) throws IOException {
+		writeFile(file, position, count, false, handler);
+	}
+
+	/**
+	 * @param close
+	 *            closes the file once sent, or when the stream is closed.
+	 */
+	void writeFile(FileChannel file, long position, long count,
+			boolean close, Runnable handler) throws IOException {
+		checkClosed();
+		count = Math.min(count, file.size() - position);
+		if (count > 0)
+			writeQueue.addLast(new FileRegion(file, position, count, close));
+		else if (close)
+			file.close();
+		flush(handler);
+	}
+
+	/**
+	 * Adapts a StreamHandler to a write completion.
+	 * 
+	 * @param handler
+	 * @return
+	 */
+	private static Runnable completion(final StreamHandler handler) {
+		if (handler == null)
+			return null;
+		return new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					handler.execute("");
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Sets the handler and writes right away, unless already writing.
+	 * 
+	 * @param handler
+	 */
+	private void flush(Runnable handler) {
+		writeCallback = handler;
+		if (writing)
+			return;
 		writing = true;
-		writeBuffer.mark();
-		writeBuffer.put(bytes);
 		try {
-			loop.addHandler(client, this, SelectionKey.OP_WRITE);
-			writeCallback = handler;
+			handleWrite();
+			if (writing)
+				addIOState(SelectionKey.OP_WRITE);
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 
+	/**
+	 * Adds the op to the interests of this stream. The first call registers
+	 * the channel within the loop, later ones only update its interest ops.
+	 * 
+	 * @param op
+	 * @throws Exception
+	 */
+	private void addIOState(int op) throws Exception {
+		if ((state & op) == op)
+			return;
+		state |= op;
+		if (handling)
+			return;
+		if (!registered) {
+			registered = true;
+			loop.addHandler(client, this, state);
+		} else {
+			loop.updateHandler(client, state);
+		}
+		updateTimeouts();
+	}
+
+	/**
+	 * Restarts the idle timeouts of the ops the stream is waiting for. Only
+	 * their deadlines move, nothing is allocated.
+	 */
+	private void updateTimeouts() {
+		boolean read = readTimeout > 0 && (state & SelectionKey.OP_READ) != 0;
+		boolean write = writeTimeout > 0
+				&& (state & SelectionKey.OP_WRITE) != 0;
+		if (!read && !write)
+			return;
+		long now = System.currentTimeMillis();
+		if (read)
+			readIdle.restart(now, readTimeout);
+		if (write)
+			writeIdle.restart(now, writeTimeout);
+	}
+
+	private void cancelTimeouts() {
+		readIdle.cancel();
+		writeIdle.cancel();
+	}
+
 	@Override
 	public void handleEvents(int opts, SelectableChannel channel)
 			throws Exception {
-		if (SelectionKey.OP_READ == opts) {
-			this.handleRead();
-		} else if (SelectionKey.OP_WRITE == opts) {
-			this.handleWrite();
+		// the loop cleared our interest before dispatching.
+		state = 0;
+		handling = true;
+		try {
+			if ((opts & SelectionKey.OP_READ) != 0) {
+				this.handleRead();
+			}
+			if ((opts & SelectionKey.OP_WRITE) != 0 && !closed) {
+				this.handleWrite();
+			}
+		} finally {
+			handling = false;
 		}
+		if (closed)
+			return;
+		if (reading())
+			state |= SelectionKey.OP_READ;
+		if (writing)
+			state |= SelectionKey.OP_WRITE;
+		if (state != 0)
+			loop.updateHandler(client, state);
+		updateTimeouts();
 
 	}
 
+	/**
+	 * Writes the queue until it is empty or the socket takes no more bytes.
+	 * Consecutive buffers go in a single gathering write, file regions are
+	 * transferred one by one. If the socket is full the stream keeps writing,
+	 * so OP_WRITE is armed again and the write resumes when the socket
+	 * drains.
+	 * 
+	 * @throws Exception
+	 */
 	private void handleWrite() throws Exception {
-		ByteBuffer tempWrite = writeBuffer.duplicate();
-		tempWrite.reset();
-
-		while (tempWrite.remaining() > 0) {
+		while (!writeQueue.isEmpty()) {
+			boolean complete;
 			try {
-				client.write(tempWrite);
-				writing = false;
-			} catch (Exception e) {
-				// TODO How to handle would block?
+				if (writeQueue.peekFirst() instanceof FileRegion)
+					complete = writeFileRegion();
+				else
+					complete = writeBuffers();
+			} catch (IOException e) {
 				e.printStackTrace();
+				clearWriteQueue();
+				writing = false;
 				close();
 				return;
 			}
-
+			if (!complete) {
+				// partial write, the socket buffer is full.
+				updateWritable();
+				return;
+			}
 		}
-		writeBuffer.clear();
+		writing = false;
+		updateWritable();
+		if (writing)
+			// the drain callback wrote more, the handler waits for it.
+			return;
 		if (this.closing) {
 			this.close();
-		} else {
-			if (tempWrite.remaining() == 0 && writeCallback != null) {
-				StreamHandler callback = writeCallback;
-				writeCallback = null;
-				try {
-					if (callback != null)
-						callback.execute("");
-				} catch (Exception e) {
-					close();
-				}
+		} else if (writeCallback != null) {
+			Runnable callback = writeCallback;
+			writeCallback = null;
+			try {
+				callback.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+				close();
 			}
 		}
 
 	}
 
 	/**
-	 * If this code is being executed, the SO guarantees that there is at least
-	 * one byte to read. The channel is queried in slots of 8192 bytes. TODO
+	 * Writes the buffers at the head of the queue, up to the next file region.
 	 * 
-	 * @throws Exception
+	 * @return true if they were all written
+	 * @throws IOException
 	 */
-	private void handleRead() throws Exception {
-
-		readBuffer.mark();
-		streamRead.mark();
-		stream.mark();
-		int read;
-		while ((read = client.read(readBuffer)) > 0) {
-			CharsetDecoder decoder = charSet.newDecoder();
-			ByteBuffer dupReadBuffer = readBuffer.duplicate();
-			dupReadBuffer.reset();
-			decoder.decode(dupReadBuffer, stream, true);
-			decoder.flush(stream);
-			if (stream.position() != stream.limit())
-				stream.position(stream.position() + read);
-			readBuffer.mark();
+	private boolean writeBuffers() throws IOException {
+		int count = 0;
+		long expected = 0;
+		ByteBuffer[] gather = gathers.get();
+		if (gather == null || gather.length < MAX_GATHER) {
+			gather = new ByteBuffer[MAX_GATHER];
+			gathers.set(gather);
 		}
-		if (read == -1) {
-			close();
-			return;
+		for (Object item : writeQueue) {
+			if (count == MAX_GATHER || !(item instanceof ByteBuffer))
+				break;
+			ByteBuffer buffer = (ByteBuffer) item;
+			expected += buffer.remaining();
+			gather[count++] = buffer;
 		}
+		long written;
+		try {
+			written = client.write(gather, 0, count);
+		} finally {
+			Arrays.fill(gather, 0, count, null);
+		}
+		pendingBytes -= written;
+		while (count-- > 0
+				&& !((ByteBuffer) writeQueue.peekFirst()).hasRemaining())
+			writeQueue.pollFirst();
+		return written == expected;
+	}
 
-		streamRead.reset();
-
-		// If delimiter is still present, callback should be excecuted if
-		// the
-		// content is found.
-		if (delimiter != null) {
-
-			String found = find(delimiter);
-			if (found != "") {
-				StreamHandler cback = callback;
-				callback = null;
-				delimiter = null;
-				cback.execute(found);
-			} else {
-				// content not yet available. lets wait for it.
-				loop.addHandler(client, this, SelectionKey.OP_READ);
-			}
+	/**
+	 * Sends the file region at the head of the queue.
+	 * 
+	 * @return true if it was all sent
+	 * @throws IOException
+	 */
+	private boolean writeFileRegion() throws IOException {
+		FileRegion region = (FileRegion) writeQueue.peekFirst();
+		if (!region.transferTo(client))
+			return false;
+		writeQueue.pollFirst();
+		region.release();
+		return true;
+	}
 
-		} else if (amount > 0) {
-			// if the amount is present, should invoke the readBytes.
-			StreamHandler cback = callback;
-			callback = null;
-			int _amount = amount;
-			amount = 0;
-			readBytes(_amount, cback);
+	/**
+	 * Drops whatever is waiting to be written, closing the files owned by the
+	 * stream.
+	 */
+	private void clearWriteQueue() {
+		Object item;
+		while ((item = writeQueue.pollFirst()) != null) {
+			if (item instanceof FileRegion)
+				((FileRegion) item).release();
 		}
-
+		pendingBytes = 0;
+		drainCallback = null;
 	}
 
 	/**
-	 * Attempt to find the chars in the remaining chars of the current stream.
-	 * If the stream is not ready to be used (null) an "" are returned.
-	 * 
+	 * If this code is being executed, the SO guarantees that there is at least
+	 * one byte to read. The channel is read while it fills the buffer, growing
+	 * it chunk by chunk up to {@link #getMaxBufferSize()}, then the pending
+	 * read is satisfied from the buffered bytes, if possible.
 	 * 
-	 * @param searchString
-	 * @return "" or the found string.
-	 */
-	private String find(String searchString) {
-
-		String sStream = streamRead.subSequence(streamRead.position(),
-				stream.position()).toString();
-		int index = sStream.indexOf(searchString);
-		if (index > -1) {
-			String found = sStream.substring(0, index + searchString.length());
-			int forwardPosition = index + searchString.length();
-			streamRead.position(forwardPosition);
-			return found;
+	 * @throws Exception
+	 */
+	private void handleRead() throws Exception {
+		if (readBuffer.readFrom(client) == -1) {
+			close();
+			return;
+		}
+		if (readFromBuffer() || !reading())
+			return;
+		if (readBuffer.isFull()) {
+			// nothing else fits and the pending read is not satisfied.
+			close();
 		}
-		return "";
-
 	}
 
 	public void close() throws Exception {
 		this.closing = true;
 		if (!this.writing) {
 			this.closed = true;
-			this.stream.clear();
-			this.readBuffer.clear();
-			this.streamRead.clear();
-			this.client.close();
+			cancelTimeouts();
+			this.readBuffer.release();
+			this.scanPos = 0;
+			clearWriteQueue();
+			try {
+				this.client.close();
+			} finally {
+				Runnable[] callbacks = closeCallbacks
+						.toArray(new Runnable[closeCallbacks.size()]);
+				closeCallbacks.clear();
+				for (Runnable callback : callbacks)
+					callback.run();
+			}
 		}
 	}
 
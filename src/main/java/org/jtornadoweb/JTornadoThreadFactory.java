@@ -1,19 +1,31 @@
 package org.jtornadoweb;
 
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.lang.reflect.Method;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A custom thread factory. It will put every JTornado Thread in a
  * given group an set the uncaightException for every new thread.
+ * <p>
+ * A virtual factory ({@link #virtual(String)}) creates virtual threads with
+ * the same naming and uncaughtException. Virtual threads have no group nor
+ * priority. They need Java 21, so the builder is looked up by reflection and
+ * {@link #isVirtualSupported()} tells whether it was found.
+ * </p>
  * @author paulo
  *
  */
 class JTornadoThreadFactory implements ThreadFactory {
 
-	private int count;
+	private final AtomicInteger count = new AtomicInteger();
+
+	private final String prefix;
+
+	private final boolean virtual;
 
 	private static final ThreadGroup TG = new ThreadGroup(
 			"JTornado Thread Group");
@@ -28,13 +40,94 @@ class JTornadoThreadFactory implements ThreadFactory {
 		}
 	};
 
+	/**
+	 * Thread.ofVirtual() and the Thread.Builder methods, null before Java 21.
+	 */
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method UNCAUGHT_EXCEPTION_HANDLER;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null, name = null, handler = null, unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			handler = builder.getMethod("uncaughtExceptionHandler",
+					UncaughtExceptionHandler.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNCAUGHT_EXCEPTION_HANDLER = handler;
+		UNSTARTED = unstarted;
+	}
+
+	public JTornadoThreadFactory() {
+		this("JTornado Task-");
+	}
+
+	/**
+	 * @param prefix
+	 *            name of the threads, followed by a sequence number.
+	 */
+	public JTornadoThreadFactory(String prefix) {
+		this(prefix, false);
+	}
+
+	private JTornadoThreadFactory(String prefix, boolean virtual) {
+		this.prefix = prefix;
+		this.virtual = virtual;
+	}
+
+	/**
+	 * A factory of virtual threads.
+	 *
+	 * @param prefix
+	 * @return
+	 * @throws UnsupportedOperationException
+	 *             if the running JVM has no virtual threads.
+	 */
+	public static JTornadoThreadFactory virtual(String prefix) {
+		if (!isVirtualSupported())
+			throw new UnsupportedOperationException(
+					"Virtual threads require Java 21");
+		return new JTornadoThreadFactory(prefix, true);
+	}
+
+	/**
+	 * True if the running JVM creates virtual threads.
+	 *
+	 * @return
+	 */
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
 	@Override
 	public Thread newThread(Runnable r) {
+		if (virtual)
+			return newVirtualThread(r);
 		Thread thread = new Thread(TG, r);
-		thread.setName("JTornado Task-" + count++);
+		thread.setName(prefix + count.getAndIncrement());
 		thread.setPriority(Thread.NORM_PRIORITY);
 		thread.setUncaughtExceptionHandler(exHandler);
 		return thread;
 	}
 
-}
\ No newline at end of file
+	private Thread newVirtualThread(Runnable r) {
+		try {
+			Object builder = OF_VIRTUAL.invoke(null);
+			NAME.invoke(builder, prefix + count.getAndIncrement());
+			UNCAUGHT_EXCEPTION_HANDLER.invoke(builder, exHandler);
+			return (Thread) UNSTARTED.invoke(builder, r);
+		} catch (Exception e) {
+			throw new IllegalStateException("Unable to create virtual thread",
+					e);
+		}
+	}
+
+}
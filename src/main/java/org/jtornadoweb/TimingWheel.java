@@ -0,0 +1,199 @@
+package org.jtornadoweb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timing wheel used by the IOLoop to keep its timeouts. Time is divided
+ * in ticks of <b>tickMillis</b> and every timeout is hashed to the bucket of
+ * the tick it expires in. Buckets are doubly linked lists, so scheduling and
+ * cancelling are O(1) no matter how many timeouts are pending. Timeouts
+ * further than one turn of the wheel carry the number of remaining rounds.
+ * <p>
+ * Not thread safe. It is owned by the loop thread, see
+ * {@link IOLoop#addTimeout(long, Runnable)}.
+ * </p>
+ */
+public class TimingWheel {
+
+	/**
+	 * A callback scheduled for a deadline. Returned by
+	 * {@link IOLoop#addTimeout(long, Runnable)} and used to remove it.
+	 */
+	public static class Timeout {
+		final Runnable callback;
+		/**
+		 * Deadline as given by the client, in milliseconds.
+		 */
+		final long deadline;
+		/**
+		 * Deadline in the clock of the wheel.
+		 */
+		final long expiration;
+		volatile boolean cancelled;
+		long rounds;
+		int bucket = -1;
+		Timeout prev;
+		Timeout next;
+
+		Timeout(long deadline, long expiration, Runnable callback) {
+			this.deadline = deadline;
+			this.expiration = expiration;
+			this.callback = callback;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout[] buckets;
+	private final int mask;
+	private final long startTime;
+	/**
+	 * Next tick to be processed.
+	 */
+	private long tick;
+	private int size;
+	private final List<Timeout> expired = new ArrayList<Timeout>();
+
+	/**
+	 * @param tickMillis
+	 *            duration of a tick.
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two.
+	 * @param now
+	 *            current time in the clock of the wheel.
+	 */
+	public TimingWheel(long tickMillis, int wheelSize, long now) {
+		int n = 1;
+		while (n < wheelSize)
+			n <<= 1;
+		this.tickMillis = tickMillis;
+		this.buckets = new Timeout[n];
+		this.mask = n - 1;
+		this.startTime = now;
+	}
+
+	/**
+	 * Links the timeout in the bucket of its expiration tick. Timeouts already
+	 * expired go to the next tick to be processed.
+	 *
+	 * @param timeout
+	 */
+	void add(Timeout timeout) {
+		if (timeout.cancelled || timeout.bucket != -1)
+			return;
+		long ticks = (timeout.expiration - startTime + tickMillis - 1)
+				/ tickMillis;
+		if (ticks < tick)
+			ticks = tick;
+		timeout.rounds = (ticks - tick) / buckets.length;
+		int index = (int) (ticks & mask);
+		timeout.bucket = index;
+		timeout.prev = null;
+		timeout.next = buckets[index];
+		if (buckets[index] != null)
+			buckets[index].prev = timeout;
+		buckets[index] = timeout;
+		size++;
+	}
+
+	/**
+	 * Unlinks the timeout from its bucket, if linked.
+	 *
+	 * @param timeout
+	 */
+	void remove(Timeout timeout) {
+		if (timeout.bucket == -1)
+			return;
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			buckets[timeout.bucket] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+		size--;
+	}
+
+	/**
+	 * Processes every tick up to now and runs the callbacks of the expired
+	 * timeouts. Callbacks may schedule new timeouts.
+	 *
+	 * @param now
+	 * @return number of callbacks executed
+	 */
+	int expire(long now) {
+		if (size == 0) {
+			// nothing to walk through, just catch up with the clock.
+			tick = Math.max(tick, (now - startTime) / tickMillis);
+			return 0;
+		}
+		while (startTime + tick * tickMillis <= now) {
+			Timeout timeout = buckets[(int) (tick & mask)];
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.rounds <= 0) {
+					remove(timeout);
+					expired.add(timeout);
+				} else {
+					timeout.rounds--;
+				}
+				timeout = next;
+			}
+			tick++;
+			if (size == 0) {
+				tick = Math.max(tick, (now - startTime) / tickMillis);
+				break;
+			}
+		}
+		int count = 0;
+		for (int i = 0; i < expired.size(); i++) {
+			Timeout timeout = expired.get(i);
+			if (timeout.cancelled)
+				continue;
+			try {
+				timeout.callback.run();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			count++;
+		}
+		expired.clear();
+		return count;
+	}
+
+	/**
+	 * Milliseconds until the tick of the nearest non empty bucket, or -1 if
+	 * there are no timeouts.
+	 *
+	 * @param now
+	 * @return
+	 */
+	long nextTimeout(long now) {
+		if (size == 0)
+			return -1;
+		for (int i = 0; i < buckets.length; i++) {
+			if (buckets[(int) ((tick + i) & mask)] != null)
+				return Math.max(0, startTime + (tick + i) * tickMillis - now);
+		}
+		return -1;
+	}
+
+	/**
+	 * Number of pending timeouts.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -1,7 +1,15 @@
 package org.jtornadoweb;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
 import java.net.HttpCookie;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -22,6 +30,7 @@ import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
+import org.jtornadoweb.HttpServer.BodyPublisher;
 import org.jtornadoweb.HttpServer.HttpRequest;
 import org.jtornadoweb.util.Base64Coder;
 
@@ -32,6 +41,69 @@ import org.jtornadoweb.util.Base64Coder;
  */
 public class Web {
 
+	/**
+	 * Marks a RequestHandler that reads the body of the requests as it
+	 * arrives, like tornado's stream_request_body. The handler is executed
+	 * once the headers are read: {@link #prepare()} subscribes to
+	 * request.getBodyPublisher() and the http method is invoked after the
+	 * last chunk. Bodies of any size are accepted, the handler must check
+	 * them.
+	 * <p>
+	 * A subscriber cancelling the subscription stops the body there and the
+	 * http method is not invoked: the handler must answer itself, e.g.
+	 * sendError(413). The rest of the body is not read, the connection is
+	 * closed once the response is finished.
+	 * </p>
+	 * 
+	 * <pre>
+	 * &#064;StreamRequestBody
+	 * public class Upload extends RequestHandler {
+	 * 	public void prepare() {
+	 * 		request.getBodyPublisher().subscribe(new FileSubscriber(out));
+	 * 	}
+	 * 
+	 * 	public void post() {
+	 * 		write(&quot;stored&quot;);
+	 * 	}
+	 * }
+	 * </pre>
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.TYPE)
+	public static @interface StreamRequestBody {
+	}
+
+	/**
+	 * Marks an http method of a RequestHandler that does not end the request
+	 * when it returns, like tornado's asynchronous decorator. The handler
+	 * calls {@link RequestHandler#finish()} once done, typically from the
+	 * callback of {@link RequestHandler#flush(Runnable)}.
+	 * 
+	 * <pre>
+	 * &#064;Asynchronous
+	 * public void get() {
+	 * 	next();
+	 * }
+	 * 
+	 * void next() {
+	 * 	if (!rows.hasNext()) {
+	 * 		finish();
+	 * 		return;
+	 * 	}
+	 * 	write(rows.next());
+	 * 	flush(new Runnable() {
+	 * 		public void run() {
+	 * 			next();
+	 * 		}
+	 * 	});
+	 * }
+	 * </pre>
+	 */
+	@Retention(RetentionPolicy.RUNTIME)
+	@Target(ElementType.METHOD)
+	public static @interface Asynchronous {
+	}
+
 	/**
 	 * If you want to define a handler for one of the SUPPORTED_METHODS subclass
 	 * this class.
@@ -60,8 +132,34 @@ public class Web {
 
 		private boolean autoFinish;
 
-		// TODO change this type
-		private String writeBuffer;
+		/**
+		 * Chunks given to {@link #write(String)} since the last flush.
+		 */
+		private final List<ByteBuffer> writeBuffer = new ArrayList<ByteBuffer>(
+				2);
+
+		/**
+		 * The response goes on with Transfer-Encoding: chunked.
+		 */
+		private boolean chunked;
+
+		/**
+		 * Files sent after the writeBuffer, see
+		 * {@link #writeFile(FileChannel, long, long)}.
+		 */
+		private List<FileRegion> files;
+
+		private static class FileRegion {
+			final FileChannel file;
+			final long position;
+			final long count;
+
+			FileRegion(FileChannel file, long position, long count) {
+				this.file = file;
+				this.position = position;
+				this.count = count;
+			}
+		}
 
 		// TODO private Transform transforms; to be implemented
 		// TODO ui
@@ -122,7 +220,17 @@ public class Web {
 				if (request.headers.get("Connection", "").equals("Keep-Alive"))
 					setHeader("Connection", "Keep-Alive");
 
-			writeBuffer = "";
+			writeBuffer.clear();
+			if (files != null) {
+				for (FileRegion region : files) {
+					try {
+						region.file.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				files = null;
+			}
 			statusCode = 200;
 		}
 
@@ -417,9 +525,38 @@ public class Web {
 
 				prepare();
 
+				if (finished)
+					return;
+
+				BodyPublisher body = (BodyPublisher) request
+						.getBodyPublisher();
+				if (body != null) {
+					body.whenComplete(new Runnable() {
+
+						@Override
+						public void run() {
+							invokeMethod();
+						}
+					});
+					return;
+				}
+				invokeMethod();
+			} catch (Exception e) {
+				this.handleRequestException(e);
+			}
+		}
+
+		/**
+		 * Invokes the http method and finishes if auto finish is on.
+		 */
+		private void invokeMethod() {
+			try {
 				if (!finished) {
-					getClass().getMethod(request.method.toLowerCase()).invoke(
-							this);
+					java.lang.reflect.Method method = getClass().getMethod(
+							request.method.toLowerCase());
+					if (method.isAnnotationPresent(Asynchronous.class))
+						autoFinish = false;
+					method.invoke(this);
 					if (autoFinish && !finished)
 						finish();
 				}
@@ -448,8 +585,44 @@ public class Web {
 					+ this.request.remoteIp + ")";
 		}
 
-		protected void write(String buffer) {
-			writeBuffer = buffer;
+		/**
+		 * Writes the chunk, encoded in UTF-8, to the output buffer. Nothing
+		 * is sent before {@link #flush()} or {@link #finish()}.
+		 * 
+		 * @param chunk
+		 */
+		protected void write(String chunk) {
+			write(chunk.getBytes(StandardCharsets.UTF_8));
+		}
+
+		/**
+		 * Writes the bytes to the output buffer, they are not copied.
+		 * 
+		 * @param chunk
+		 */
+		protected void write(byte[] chunk) {
+			if (finished)
+				throw new IllegalStateException("Cannot write() after finish()");
+			if (chunk.length > 0)
+				writeBuffer.add(ByteBuffer.wrap(chunk));
+		}
+
+		/**
+		 * Sends <b>count</b> bytes of the file, starting at <b>position</b>,
+		 * after the content given to {@link #write(String)}. The bytes go from
+		 * the page cache to the socket without being copied to the heap. The
+		 * handler owns the channel from now on and closes it once sent.
+		 * 
+		 * @param file
+		 * @param position
+		 * @param count
+		 */
+		protected void writeFile(FileChannel file, long position, long count)
+				throws IOException {
+			count = Math.min(count, file.size() - position);
+			if (files == null)
+				files = new ArrayList<FileRegion>();
+			files.add(new FileRegion(file, position, Math.max(count, 0)));
 		}
 
 		/**
@@ -459,7 +632,8 @@ public class Web {
 		 */
 		private void finish(String chunk) {
 
-			assert !this.finished;
+			if (this.finished)
+				throw new IllegalStateException("finish() called twice");
 			if (chunk != null)
 				this.write(chunk);
 
@@ -469,18 +643,24 @@ public class Web {
 				}
 			}
 
-			flush();
-			request.finish();
 			finished = true;
+			flush(true, null);
+			request.finish();
 		}
 
 		/**
-		 * Finishes this response, ending the HTTP request.
+		 * Finishes this response, ending the HTTP request. Must be called
+		 * once.
+		 * 
+		 * @throws IllegalStateException
+		 *             if already finished.
 		 */
-		private void finish() {
-			flush();
-			request.finish();
+		public void finish() {
+			if (finished)
+				throw new IllegalStateException("finish() called twice");
 			finished = true;
+			flush(true, null);
+			request.finish();
 		}
 
 		/**
@@ -515,15 +695,101 @@ public class Web {
 			return String.format(page, statusCode, HttpCode.get(statusCode));
 		}
 
-		private void flush() {
-			String headers = generateHeaders(false);
-			request.write((headers + writeBuffer).getBytes());
+		/**
+		 * Sends what was written so far, see {@link #flush(Runnable)}.
+		 */
+		public void flush() {
+			flush(false, null);
+		}
+
+		/**
+		 * Sends what was written so far. The first flush sends the headers:
+		 * unless the handler set a Content-Length, the response goes on with
+		 * Transfer-Encoding: chunked, each flush sending a chunk, or ends by
+		 * closing the connection for clients that do not support it. The
+		 * callback runs once the bytes are written to the socket, a handler
+		 * writing a large response writes the next part from there, see
+		 * {@link Asynchronous}.
+		 * 
+		 * @param callback
+		 *            may be null
+		 */
+		public void flush(Runnable callback) {
+			flush(false, callback);
+		}
+
+		/**
+		 * Sends headers and body together, without joining them. When
+		 * finishing before any flush the body length is known and sent as
+		 * Content-Length.
+		 */
+		private void flush(boolean finishing, Runnable callback) {
+			long length = 0;
+			for (ByteBuffer chunk : writeBuffer)
+				length += chunk.remaining();
+			if (files != null) {
+				for (FileRegion region : files)
+					length += region.count;
+			}
+			List<ByteBuffer> buffers = new ArrayList<ByteBuffer>(
+					writeBuffer.size() + 3);
+			if (!headersWritten) {
+				headersWritten = true;
+				if (finishing)
+					headers.put("Content-Length", String.valueOf(length));
+				else if (!headers.containsKey("Content-Length")) {
+					if (supportsChunking()) {
+						chunked = true;
+						headers.put("Transfer-Encoding", "chunked");
+					} else {
+						headers.put("Connection", "close");
+						request.closeConnection = true;
+					}
+				}
+				buffers.add(ascii(generateHeaders()));
+			}
+			if (chunked && length > 0)
+				buffers.add(ascii(Long.toHexString(length) + "\r\n"));
+			buffers.addAll(writeBuffer);
+			writeBuffer.clear();
+			if (files != null) {
+				request.write(buffers.toArray(new ByteBuffer[buffers.size()]));
+				buffers.clear();
+				for (FileRegion region : files)
+					request.writeFile(region.file, region.position,
+							region.count);
+				files = null;
+			}
+			if (chunked && length > 0)
+				buffers.add(ascii("\r\n"));
+			if (chunked && finishing)
+				buffers.add(ascii("0\r\n\r\n"));
+			if (!buffers.isEmpty() || callback != null)
+				request.write(buffers.toArray(new ByteBuffer[buffers.size()]),
+						callback);
+		}
+
+		/**
+		 * Chunked responses need an HTTP/1.1 client and a response that has a
+		 * body.
+		 */
+		private boolean supportsChunking() {
+			return request.supportsHttp11() && statusCode != 204
+					&& statusCode != 304 && !"HEAD".equals(request.method);
 		}
 
-		private String generateHeaders(boolean includeFooters) {
-			return "HTTP/1.1 200 OK\r\nContent-Length: "
-					+ writeBuffer.getBytes().length + "\r\n\r\n";
+		private static ByteBuffer ascii(String value) {
+			return ByteBuffer.wrap(value.getBytes(StandardCharsets.ISO_8859_1));
+		}
 
+		private String generateHeaders() {
+			StringBuilder lines = new StringBuilder("HTTP/1.1 ");
+			lines.append(statusCode).append(' ').append(HttpCode.get(statusCode))
+					.append("\r\n");
+			for (Map.Entry<String, String> header : headers.entrySet())
+				lines.append(header.getKey()).append(": ").append(
+						header.getValue()).append("\r\n");
+			return lines.append("\r\n").toString();
 		}
 	}
 
@@ -531,6 +797,22 @@ public class Web {
 		public void execute(HttpRequest request);
 	}
 
+	/**
+	 * RequestCallback that may want the body of a request as it arrives.
+	 * If so the request is executed as soon as its headers are read, with
+	 * the body in {@link HttpRequest#getBodyPublisher()}.
+	 */
+	public static interface StreamingRequestCallback extends RequestCallback {
+
+		/**
+		 * Called once the headers are read.
+		 * 
+		 * @param request
+		 * @return true to stream the body of this request
+		 */
+		public boolean streamBody(HttpRequest request);
+	}
+
 	/**
 	 * Application is responsible for mapping requests to appropriate
 	 * RequestHandler. Methods in this class may be used as a simple dsl: new
@@ -539,7 +821,7 @@ public class Web {
 	 * @author rafaelfelini
 	 */
 	public static class Application<T extends RequestHandler> implements
-			RequestCallback {
+			StreamingRequestCallback {
 
 		public Map<String, String> settings;
 		protected Map<Pattern, Class<T>> handlers;
@@ -560,6 +842,20 @@ public class Web {
 			return this;
 		}
 
+		/**
+		 * True if the handler of the path is marked with
+		 * {@link StreamRequestBody}.
+		 */
+		@Override
+		public boolean streamBody(HttpRequest request) {
+			for (Map.Entry<Pattern, Class<T>> entry : handlers.entrySet()) {
+				if (entry.getKey().matcher(request.path).matches())
+					return entry.getValue().isAnnotationPresent(
+							StreamRequestBody.class);
+			}
+			return false;
+		}
+
 		/**
 		 * Get a new Instance of RequestHandler and invokes the http method.
 		 */
@@ -644,6 +940,7 @@ public class Web {
 			codes.put(415, "Unsupported Media Type");
 			codes.put(416, "Requested Range Not Satisfiable");
 			codes.put(417, "Expectation Failed");
+			codes.put(431, "Request Header Fields Too Large");
 
 			codes.put(500, "Internal Server Error");
 			codes.put(501, "Not Implemented");
@@ -0,0 +1,57 @@
+package JTornado;
+
+import org.jtornadoweb.HttpServer;
+import org.jtornadoweb.HttpServer.ExecutionMode;
+import org.jtornadoweb.Web.Application;
+import org.jtornadoweb.Web.RequestHandler;
+
+/**
+ * Load test of a handler that blocks, as one doing JDBC or file I/O would. In
+ * {@link ExecutionMode#POOL} the throughput is bounded by the pool size
+ * divided by the sleep time. In {@link ExecutionMode#VIRTUAL} each request
+ * blocks its own virtual thread. Not a unit test, run it by hand:
+ *
+ * <pre>
+ * java JTornado.BlockingHandlerBenchmark [connections] [seconds] [sleepMillis]
+ * </pre>
+ */
+public class BlockingHandlerBenchmark {
+
+	static long sleep = 50;
+
+	public static class SleepHandler extends RequestHandler {
+		@Override
+		public void get() {
+			try {
+				Thread.sleep(sleep);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			write("Slept " + sleep + " ms");
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		sleep = args.length > 2 ? Long.parseLong(args[2]) : 50;
+
+		int port = 8095;
+		ExecutionMode[] modes = { ExecutionMode.POOL, ExecutionMode.VIRTUAL };
+		for (ExecutionMode mode : modes) {
+			ExecutionModeBenchmark.startServer(new HttpServer(
+					new Application<SleepHandler>().add("/",
+							SleepHandler.class), false, null, false).setExecutionMode(mode), port);
+			// warm up
+			ExecutionModeBenchmark.run(port, connections, 1, 1);
+			double rate = ExecutionModeBenchmark.run(port, connections,
+					seconds, 1);
+			System.out.println(String.format(
+					"%-7s %d connections, %d ms handler: %.0f requests/s",
+					ExecutionModeBenchmark.label(mode), connections, sleep,
+					rate));
+			port++;
+		}
+		System.exit(0);
+	}
+}
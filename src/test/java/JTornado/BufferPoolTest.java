@@ -0,0 +1,82 @@
+package JTornado;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.BufferPool;
+
+public class BufferPoolTest extends TestCase {
+
+	public BufferPoolTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(BufferPoolTest.class);
+	}
+
+	public void testAcquire_sizeClasses() {
+		BufferPool pool = new BufferPool(true, 1024, 65536, 1 << 20);
+		ByteBuffer small = pool.acquire(10);
+		assertTrue(small.isDirect());
+		assertEquals(1024, small.capacity());
+		assertEquals(10, small.limit());
+		ByteBuffer medium = pool.acquire(5000);
+		assertEquals(8192, medium.capacity());
+		ByteBuffer huge = pool.acquire(100000);
+		assertEquals(100000, huge.capacity());
+		assertFalse(huge.isDirect());
+		assertEquals(1024 + 8192 + 100000, pool.getLeasedBytes());
+		pool.release(huge);
+		pool.release(medium);
+		pool.release(small);
+		assertEquals(0, pool.getLeasedBytes());
+		assertEquals(1024 + 8192, pool.getPooledBytes());
+		assertEquals(1024 + 8192 + 100000, pool.getHighWaterBytes());
+	}
+
+	public void testRelease_reused() {
+		BufferPool pool = new BufferPool(false, 1024, 65536, 1 << 20);
+		ByteBuffer buffer = pool.acquire(4096);
+		buffer.put((byte) 1);
+		pool.release(buffer);
+		ByteBuffer again = pool.acquire(3000);
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		assertEquals(3000, again.limit());
+		assertEquals(1, pool.getAllocatedCount());
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	/**
+	 * Buffers released by other threads go to the shared free list once
+	 * their caches are full, and beyond the limit are dropped.
+	 */
+	public void testRelease_sharedAndLimit() throws Exception {
+		final BufferPool pool = new BufferPool(false, 1024, 1024,
+				(BufferPool.THREAD_CACHE_SIZE + 4) * 1024);
+		final ByteBuffer[] buffers = new ByteBuffer[BufferPool.THREAD_CACHE_SIZE + 8];
+		for (int i = 0; i < buffers.length; i++)
+			buffers[i] = pool.acquire(1024);
+		Thread releaser = new Thread() {
+			@Override
+			public void run() {
+				for (ByteBuffer buffer : buffers)
+					pool.release(buffer);
+			}
+		};
+		releaser.start();
+		releaser.join();
+		assertEquals((BufferPool.THREAD_CACHE_SIZE + 4) * 1024, pool
+				.getPooledBytes());
+		for (int i = 0; i < 4; i++)
+			pool.acquire(1024);
+		assertEquals(buffers.length, pool.getAllocatedCount());
+	}
+}
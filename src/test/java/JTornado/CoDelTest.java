@@ -0,0 +1,74 @@
+package JTornado;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.CoDel;
+
+/**
+ * CoDel driven by a fake clock: target 10ms, interval 100ms.
+ */
+public class CoDelTest extends TestCase {
+
+	private long now;
+
+	private final CoDel codel = new CoDel(10, 100) {
+		@Override
+		protected long nanoTime() {
+			return now;
+		}
+	};
+
+	public CoDelTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(CoDelTest.class);
+	}
+
+	/**
+	 * Advances the clock and reports a task that waited <b>delayMillis</b>.
+	 */
+	private void dequeue(long atMillis, long delayMillis) {
+		now = TimeUnit.MILLISECONDS.toNanos(atMillis);
+		codel.onDequeue(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+	}
+
+	public void testOverloaded_delayAboveTargetForAnInterval() {
+		for (int t = 0; t < 100; t += 10)
+			dequeue(t, 20);
+		assertFalse(codel.isOverloaded());
+		dequeue(100, 20);
+		assertTrue(codel.isOverloaded());
+	}
+
+	public void testNotOverloaded_singleSpike() {
+		for (int t = 0; t <= 100; t += 10)
+			dequeue(t, t == 50 ? 500 : 1);
+		assertFalse(codel.isOverloaded());
+	}
+
+	public void testOverload_clearsAfterAnInterval() {
+		for (int t = 0; t <= 100; t += 10)
+			dequeue(t, 20);
+		assertTrue(codel.isOverloaded());
+		// an interval that went under the target.
+		for (int t = 110; t <= 200; t += 10)
+			dequeue(t, t == 150 ? 1 : 20);
+		assertFalse(codel.isOverloaded());
+
+		for (int t = 210; t <= 300; t += 10)
+			dequeue(t, 20);
+		assertTrue(codel.isOverloaded());
+		// nothing dequeued for two intervals, the queue drained.
+		now = TimeUnit.MILLISECONDS.toNanos(500);
+		assertFalse(codel.isOverloaded());
+	}
+}
@@ -0,0 +1,156 @@
+package JTornado;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jtornadoweb.HttpServer;
+import org.jtornadoweb.HttpServer.ExecutionMode;
+import org.jtornadoweb.Web.Application;
+import org.jtornadoweb.Web.RequestHandler;
+
+/**
+ * Compares the throughput of {@link ExecutionMode#POOL} and
+ * {@link ExecutionMode#LOOP} with clients hitting a trivial handler. Each
+ * client connection sends <b>requestsPerConnection</b> requests (1 by default)
+ * before reconnecting. Not a unit test, run it by hand:
+ *
+ * <pre>
+ * java JTornado.ExecutionModeBenchmark [connections] [seconds] [requestsPerConnection]
+ * </pre>
+ */
+public class ExecutionModeBenchmark {
+
+	public static class HelloHandler extends RequestHandler {
+		@Override
+		public void get() {
+			write("Hello, world");
+		}
+	}
+
+	private static final byte[] REQUEST = ("GET / HTTP/1.1\r\n"
+			+ "Host: localhost\r\n\r\n").getBytes();
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int perConnection = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+
+		int port = 8090;
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			startServer(new HttpServer(new Application<HelloHandler>().add("/",
+					HelloHandler.class), false, null, false)
+					.setExecutionMode(mode), port);
+			// warm up
+			run(port, connections, 1, perConnection);
+			double rate = run(port, connections, seconds, perConnection);
+			System.out.println(String.format(
+					"%-5s %d connections: %.0f requests/s", label(mode), connections,
+					rate));
+			port++;
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * The mode and, for VIRTUAL, the executor that actually ran the
+	 * handlers.
+	 */
+	static String label(ExecutionMode mode) {
+		if (mode != ExecutionMode.VIRTUAL)
+			return mode.toString();
+		return HttpServer.isVirtualThreadsSupported() ? "VIRTUAL (virtual threads)"
+				: "VIRTUAL (fallback: " + HttpServer.VIRTUAL_FALLBACK_THREADS
+						+ " platform threads)";
+	}
+
+	static void startServer(final HttpServer server, final int port)
+			throws Exception {
+		Thread thread = new Thread("benchmark-" + port) {
+			@Override
+			public void run() {
+				try {
+					server.listen(port);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		Thread.sleep(500);
+	}
+
+	/**
+	 * Runs the clients for the given time and returns requests per second.
+	 */
+	static double run(final int port, int connections, int seconds,
+			final int perConnection) throws Exception {
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+		final AtomicLong completed = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(connections);
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						while (System.currentTimeMillis() < end) {
+							Socket socket = new Socket("localhost", port);
+							socket.setTcpNoDelay(true);
+							OutputStream out = socket.getOutputStream();
+							InputStream in = new BufferedInputStream(socket
+									.getInputStream());
+							for (int n = 0; n < perConnection
+									&& System.currentTimeMillis() < end; n++) {
+								out.write(REQUEST);
+								readResponse(in);
+								completed.incrementAndGet();
+							}
+							socket.close();
+						}
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		return completed.get() / elapsed;
+	}
+
+	/**
+	 * Reads the headers and the Content-Length bytes of the body.
+	 */
+	static void readResponse(InputStream in) throws IOException {
+		StringBuilder headers = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			headers.append((char) c);
+			int len = headers.length();
+			if (len >= 4 && headers.charAt(len - 1) == '\n'
+					&& headers.charAt(len - 2) == '\r'
+					&& headers.charAt(len - 3) == '\n'
+					&& headers.charAt(len - 4) == '\r')
+				break;
+		}
+		if (c == -1)
+			throw new IOException("Connection closed");
+		int length = 0;
+		for (String line : headers.toString().split("\r\n")) {
+			if (line.regionMatches(true, 0, "Content-Length:", 0, 15))
+				length = Integer.parseInt(line.substring(15).trim());
+		}
+		for (int i = 0; i < length; i++) {
+			if (in.read() == -1)
+				throw new IOException("Connection closed");
+		}
+	}
+}
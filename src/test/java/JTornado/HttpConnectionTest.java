@@ -0,0 +1,884 @@
+package JTornado;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.BufferPool;
+import org.jtornadoweb.HttpServer.ConnectionParameters;
+import org.jtornadoweb.HttpServer.HttpConnection;
+import org.jtornadoweb.HttpServer.HttpRequest;
+import org.jtornadoweb.IOLoop;
+import org.jtornadoweb.IOStream;
+import org.jtornadoweb.Web.Application;
+import org.jtornadoweb.Web.Asynchronous;
+import org.jtornadoweb.Web.RequestCallback;
+import org.jtornadoweb.Web.RequestHandler;
+import org.jtornadoweb.Web.StreamingRequestCallback;
+
+/**
+ * Pipelined requests on an HttpConnection whose application runs in a
+ * thread pool, fed by a plain socket.
+ */
+public class HttpConnectionTest extends TestCase {
+
+	private static final ThreadFactory DAEMON = new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "HttpConnectionTest");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private IOLoop loop;
+	private ExecutorService executor;
+	private ServerSocketChannel server;
+	private Socket client;
+
+	public HttpConnectionTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(HttpConnectionTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		loop = new IOLoop(null);
+		loop.startInThread(DAEMON);
+		executor = Executors.newCachedThreadPool(DAEMON);
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("localhost", 0));
+		client = new Socket("localhost", server.socket().getLocalPort());
+		client.setTcpNoDelay(true);
+		client.setSoTimeout(5000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.close();
+		server.close();
+		executor.shutdownNow();
+	}
+
+	private void serve(RequestCallback callback, int depth) throws Exception {
+		serve(callback, new ConnectionParameters(executor, null,
+				ConnectionParameters.DEFAULT_BODY_SPILL_THRESHOLD, 8192, 65536,
+				depth));
+	}
+
+	private void serve(final RequestCallback callback,
+			final ConnectionParameters params) throws Exception {
+		final SocketChannel channel = server.accept();
+		channel.configureBlocking(false);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					new HttpConnection(new IOStream(channel, loop), channel
+							.socket().getInetAddress(), callback, false,
+							false, params);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	private static void respond(HttpRequest request, String body) {
+		request.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length()
+				+ "\r\n\r\n" + body).getBytes());
+		request.finish();
+	}
+
+	/**
+	 * Reads until the connection is closed or the socket times out.
+	 */
+	private String readAll() throws Exception {
+		InputStream in = client.getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		} catch (java.net.SocketTimeoutException e) {
+			// what was read so far.
+		}
+		return out.toString("ISO-8859-1");
+	}
+
+	/**
+	 * Requests sent at once are executed together and answered in order,
+	 * the first one finishing last.
+	 */
+	public void testPipeline_responsesInOrder() throws Exception {
+		final CountDownLatch started = new CountDownLatch(3);
+		serve(new RequestCallback() {
+
+			@Override
+			public void execute(HttpRequest request) {
+				started.countDown();
+				try {
+					if (request.getUri().equals("/slow"))
+						started.await(2, TimeUnit.SECONDS);
+					// the writes of later requests arrive first.
+					Thread.sleep(request.getUri().equals("/slow") ? 300 : 0);
+				} catch (InterruptedException e) {
+					return;
+				}
+				respond(request, request.getUri());
+			}
+		}, 16);
+		OutputStream out = client.getOutputStream();
+		out.write(("GET /slow HTTP/1.1\r\n\r\nGET /a HTTP/1.1\r\n\r\n"
+				+ "GET /b HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+		out.flush();
+		String responses = readAll();
+		assertTrue(started.await(0, TimeUnit.SECONDS));
+		int slow = responses.indexOf("/slow");
+		int a = responses.indexOf("/a");
+		int b = responses.indexOf("/b");
+		assertTrue(responses, slow != -1 && slow < a && a < b);
+	}
+
+	/**
+	 * No more than <b>depth</b> requests are read ahead of the one being
+	 * answered.
+	 */
+	public void testPipeline_boundedDepth() throws Exception {
+		final AtomicInteger executed = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		serve(new RequestCallback() {
+
+			@Override
+			public void execute(HttpRequest request) {
+				executed.incrementAndGet();
+				if (request.getUri().equals("/0")) {
+					try {
+						release.await(2, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				respond(request, request.getUri());
+			}
+		}, 2);
+		StringBuilder requests = new StringBuilder();
+		for (int i = 0; i < 5; i++)
+			requests.append("GET /" + i + " HTTP/1.1\r\n"
+					+ (i == 4 ? "Connection: close\r\n" : "") + "\r\n");
+		OutputStream out = client.getOutputStream();
+		out.write(requests.toString().getBytes());
+		out.flush();
+		Thread.sleep(300);
+		assertEquals(2, executed.get());
+		release.countDown();
+		String responses = readAll();
+		assertEquals(5, executed.get());
+		for (int i = 0; i < 4; i++)
+			assertTrue(responses, responses.indexOf("\r\n\r\n/" + i) < responses
+					.indexOf("\r\n\r\n/" + (i + 1)));
+	}
+
+	/**
+	 * A malformed request is answered after the requests before it, then
+	 * the connection is closed.
+	 */
+	public void testPipeline_errorAfterPending() throws Exception {
+		serve(new RequestCallback() {
+
+			@Override
+			public void execute(HttpRequest request) {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					return;
+				}
+				respond(request, request.getUri());
+			}
+		}, 16);
+		OutputStream out = client.getOutputStream();
+		out.write("GET /a HTTP/1.1\r\n\r\nGET /b HTTP/1.1\r\nBad Name: x\r\n\r\n"
+				.getBytes());
+		out.flush();
+		String responses = readAll();
+		assertTrue(responses, responses.startsWith("HTTP/1.1 200 OK"));
+		assertTrue(responses, responses.indexOf("/a") < responses
+				.indexOf("HTTP/1.1 400 Bad Request"));
+	}
+
+	/**
+	 * Writes a part of the response at a time, the next one once the
+	 * previous is written.
+	 */
+	public static class PacedHandler extends RequestHandler {
+
+		private int part;
+
+		@Asynchronous
+		@Override
+		public void get() {
+			next();
+		}
+
+		private void next() {
+			if (part == 3) {
+				finish();
+				return;
+			}
+			write("part" + part++);
+			flush(new Runnable() {
+
+				@Override
+				public void run() {
+					next();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Finishes twice, the second call must fail.
+	 */
+	public static class TwiceFinishedHandler extends RequestHandler {
+
+		static volatile boolean rejected;
+
+		@Override
+		public void get() {
+			write("once");
+			finish();
+			try {
+				finish();
+			} catch (IllegalStateException e) {
+				rejected = true;
+			}
+		}
+	}
+
+	public void testFinish_twice() throws Exception {
+		TwiceFinishedHandler.rejected = false;
+		serve(new Application<TwiceFinishedHandler>().add("/",
+				TwiceFinishedHandler.class), 16);
+		OutputStream out = client.getOutputStream();
+		out.write(("GET / HTTP/1.1\r\n\r\n"
+				+ "GET / HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+		out.flush();
+		String responses = readAll();
+		assertTrue(TwiceFinishedHandler.rejected);
+		int first = responses.indexOf("HTTP/1.1 200");
+		int second = responses.indexOf("HTTP/1.1 200", first + 1);
+		assertTrue(responses, first != -1 && second != -1
+				&& responses.indexOf("HTTP/1.1", second + 1) == -1);
+	}
+
+	/**
+	 * Flushed parts are sent as chunks to HTTP/1.1 clients, the connection
+	 * is kept alive.
+	 */
+	public void testFlush_chunked() throws Exception {
+		serve(new Application<PacedHandler>().add("/", PacedHandler.class), 16);
+		OutputStream out = client.getOutputStream();
+		out.write(("GET / HTTP/1.1\r\n\r\n"
+				+ "GET / HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes());
+		out.flush();
+		String responses = readAll();
+		String body = "\r\n\r\n5\r\npart0\r\n5\r\npart1\r\n5\r\npart2\r\n0\r\n\r\n";
+		int first = responses.indexOf(body);
+		assertTrue(responses, first != -1
+				&& responses.indexOf(body, first + 1) != -1);
+		assertTrue(responses, responses.contains("Transfer-Encoding: chunked"));
+		assertFalse(responses, responses.contains("Content-Length"));
+	}
+
+	/**
+	 * HTTP/1.0 clients get the parts as they are and the end of the
+	 * connection ends the response.
+	 */
+	public void testFlush_http10ClosesConnection() throws Exception {
+		serve(new Application<PacedHandler>().add("/", PacedHandler.class), 16);
+		OutputStream out = client.getOutputStream();
+		out.write("GET / HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n"
+				.getBytes());
+		out.flush();
+		String response = readAll();
+		assertTrue(response, response.endsWith("\r\n\r\npart0part1part2"));
+		assertTrue(response, response.contains("Connection: close"));
+	}
+
+	/**
+	 * Answers with the body and the X-Sum trailer.
+	 */
+	private static final RequestCallback ECHO = new RequestCallback() {
+
+		@Override
+		public void execute(HttpRequest request) {
+			String body = String.valueOf(request.getBodyString());
+			if (request.getTrailers() != null)
+				body += "|" + request.getTrailers().get("X-Sum");
+			respond(request, body);
+		}
+	};
+
+	/**
+	 * A chunked body is decoded before the request is executed, its trailers
+	 * kept, and the next request is read after it.
+	 */
+	public void testChunkedBody() throws Exception {
+		serve(ECHO, 16);
+		OutputStream out = client.getOutputStream();
+		out.write(("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+				+ "5;name=value\r\nhello\r\n6\r\n world\r\n0\r\n"
+				+ "X-Sum: 11\r\n\r\nGET /b HTTP/1.1\r\nConnection: close\r\n\r\n")
+				.getBytes());
+		out.flush();
+		String responses = readAll();
+		assertTrue(responses, responses.contains("\r\n\r\nhello world|11HTTP"));
+		assertTrue(responses, responses.endsWith("\r\n\r\nnull"));
+	}
+
+	/**
+	 * Many small chunks, sent at once, past the spill threshold.
+	 */
+	public void testChunkedBody_spilled() throws Exception {
+		serve(ECHO, new ConnectionParameters(executor, null, 100, 8192, 65536,
+				16));
+		StringBuilder request = new StringBuilder(
+				"POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+						+ "Connection: close\r\n\r\n");
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			char c = (char) ('a' + i % 26);
+			request.append("1\r\n").append(c).append("\r\n");
+			expected.append(c);
+		}
+		request.append("0\r\n\r\n");
+		OutputStream out = client.getOutputStream();
+		out.write(request.toString().getBytes());
+		out.flush();
+		String response = readAll();
+		assertTrue(response, response.endsWith("\r\n\r\n" + expected
+				+ "|null"));
+	}
+
+	public void testChunkedBody_limits() throws Exception {
+		String[][] cases = {
+				{ "11\r\n", "HTTP/1.1 413 " },
+				{ "8\r\n12345678\r\n8\r\n12345678\r\n8\r\n", "HTTP/1.1 413 " },
+				{ "x\r\n", "HTTP/1.1 400 " },
+				{ "1\r\nab\r\n", "HTTP/1.1 400 " },
+				{ "0\r\nBad Trailer: x\r\n\r\n", "HTTP/1.1 400 " } };
+		for (String[] c : cases) {
+			serve(ECHO, new ConnectionParameters(executor, null,
+					ConnectionParameters.DEFAULT_BODY_SPILL_THRESHOLD, 8192,
+					65536, 16, 16, 20));
+			OutputStream out = client.getOutputStream();
+			out.write(("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n" + c[0])
+					.getBytes());
+			out.flush();
+			String response = readAll();
+			assertTrue(c[0] + response, response.startsWith(c[1]));
+			client.close();
+			client = new Socket("localhost", server.socket().getLocalPort());
+			client.setSoTimeout(5000);
+		}
+	}
+
+	/**
+	 * Temp files of bodies open by this process. They are unlinked once
+	 * open, only their descriptors are seen, in /proc where there is one.
+	 */
+	private static List<String> bodyFiles() throws IOException {
+		List<String> files = new ArrayList<String>();
+		DirectoryStream<Path> fds = Files.newDirectoryStream(Paths
+				.get("/proc/self/fd"));
+		try {
+			for (Path fd : fds) {
+				try {
+					String file = Files.readSymbolicLink(fd).toString();
+					if (file.contains("jtornado-body-"))
+						files.add(file);
+				} catch (IOException e) {
+					// closed meanwhile.
+				}
+			}
+		} finally {
+			fds.close();
+		}
+		return files;
+	}
+
+	/**
+	 * A body past the threshold is written to a temp file and handed as a
+	 * read only mapping of it. The file is closed, and so deleted, on
+	 * finish.
+	 */
+	public void testBody_spilledToTempFile() throws Exception {
+		final boolean procFs = Files.isDirectory(Paths.get("/proc/self/fd"));
+		final List<String> spilled = new ArrayList<String>();
+		final ByteBuffer[] body = new ByteBuffer[1];
+		serve(new RequestCallback() {
+
+			@Override
+			public void execute(HttpRequest request) {
+				try {
+					if (procFs)
+						spilled.addAll(bodyFiles());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				body[0] = request.getBody();
+				respond(request, request.getBodyString());
+			}
+		}, new ConnectionParameters(executor, null, 100, 8192, 65536, 16));
+		StringBuilder data = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			data.append((char) ('a' + i % 26));
+		OutputStream out = client.getOutputStream();
+		out.write(("POST / HTTP/1.1\r\nContent-Length: 5000\r\n"
+				+ "Connection: close\r\n\r\n" + data).getBytes());
+		out.flush();
+		assertTrue(readAll().endsWith("\r\n\r\n" + data));
+		assertTrue(body[0] instanceof MappedByteBuffer);
+		assertTrue(body[0].isReadOnly());
+		assertEquals(5000, body[0].remaining());
+		if (procFs) {
+			assertEquals(1, spilled.size());
+			assertTrue(spilled.get(0), spilled.get(0).endsWith("(deleted)"));
+			assertEquals(0, bodyFiles().size());
+		}
+	}
+
+	/**
+	 * A body under the threshold is read in a buffer of the pool, given back
+	 * on finish.
+	 */
+	public void testBody_pooledBufferReleased() throws Exception {
+		final long[] leased = new long[2];
+		serve(new RequestCallback() {
+
+			@Override
+			public void execute(HttpRequest request) {
+				leased[request.getUri().equals("/body") ? 0 : 1] = BufferPool
+						.getDefault().getLeasedBytes();
+				respond(request, request.getUri());
+			}
+		}, 16);
+		OutputStream out = client.getOutputStream();
+		out.write(("POST /body HTTP/1.1\r\nContent-Length: 5000\r\n\r\n" + new String(
+				new char[5000])).getBytes());
+		out.flush();
+		InputStream in = client.getInputStream();
+		StringBuilder response = new StringBuilder();
+		while (!response.toString().endsWith("/body"))
+			response.append((char) in.read());
+		// on the same connection, its read buffer still held.
+		out.write("GET /next HTTP/1.1\r\nConnection: close\r\n\r\n"
+				.getBytes());
+		out.flush();
+		assertTrue(readAll().endsWith("/next"));
+		// the 8K size class of the body.
+		assertTrue(leased[0] + " " + leased[1], leased[1] <= leased[0] - 8192);
+	}
+
+	/**
+	 * A handler streaming the body gets the decoded bytes as they arrive.
+	 */
+	public void testChunkedBody_streamed() throws Exception {
+		final StringBuilder received = new StringBuilder();
+		serve(new StreamingRequestCallback() {
+
+			@Override
+			public boolean streamBody(HttpRequest request) {
+				return true;
+			}
+
+			@Override
+			public void execute(final HttpRequest request) {
+				request.getBodyPublisher().subscribe(
+						new Flow.Subscriber<ByteBuffer>() {
+
+							@Override
+							public void onSubscribe(Flow.Subscription s) {
+								s.request(Long.MAX_VALUE);
+							}
+
+							@Override
+							public void onNext(ByteBuffer item) {
+								received.append(StandardCharsets.ISO_8859_1
+										.decode(item));
+							}
+
+							@Override
+							public void onError(Throwable e) {
+								respond(request, e.getMessage());
+							}
+
+							@Override
+							public void onComplete() {
+								respond(request, received + "|"
+										+ request.getTrailers().get("X-Sum"));
+							}
+						});
+			}
+		}, 16);
+		OutputStream out = client.getOutputStream();
+		out.write("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n3\r\nabc\r\n"
+				.getBytes());
+		out.flush();
+		Thread.sleep(100);
+		out.write("2\r\nde\r\n0\r\nX-Sum: 5\r\n\r\n".getBytes());
+		out.flush();
+		client.setSoTimeout(1000);
+		String response = readAll();
+		assertTrue(response, response.endsWith("\r\n\r\nabcde|5"));
+	}
+
+	/**
+	 * Streams the body of every request to the subscriber made for it.
+	 */
+	private static abstract class StreamingCallback implements
+			StreamingRequestCallback {
+
+		@Override
+		public boolean streamBody(HttpRequest request) {
+			return true;
+		}
+
+		@Override
+		public void execute(HttpRequest request) {
+			request.getBodyPublisher().subscribe(subscriber(request));
+		}
+
+		abstract Flow.Subscriber<ByteBuffer> subscriber(HttpRequest request);
+	}
+
+	/**
+	 * A subscriber without demand stops the reads, the client can't send
+	 * the whole body until it asks for more.
+	 */
+	public void testStreamedBody_slowSubscriber() throws Exception {
+		final int length = 4 * 1024 * 1024;
+		// fixed buffers, the kernel would grow them past the body.
+		client.close();
+		server.accept().close();
+		server.socket().setReceiveBufferSize(65536);
+		client = new Socket();
+		client.setSendBufferSize(65536);
+		client.connect(new InetSocketAddress("localhost", server.socket()
+				.getLocalPort()));
+		client.setSoTimeout(5000);
+		final AtomicInteger chunks = new AtomicInteger();
+		final Flow.Subscription[] subscription = new Flow.Subscription[1];
+		final CountDownLatch subscribed = new CountDownLatch(1);
+		serve(new StreamingCallback() {
+
+			@Override
+			Flow.Subscriber<ByteBuffer> subscriber(final HttpRequest request) {
+				return new Flow.Subscriber<ByteBuffer>() {
+
+					private long received;
+
+					@Override
+					public void onSubscribe(Flow.Subscription s) {
+						subscription[0] = s;
+						s.request(1);
+						subscribed.countDown();
+					}
+
+					@Override
+					public void onNext(ByteBuffer item) {
+						chunks.incrementAndGet();
+						received += item.remaining();
+					}
+
+					@Override
+					public void onError(Throwable e) {
+						respond(request, e.toString());
+					}
+
+					@Override
+					public void onComplete() {
+						respond(request, String.valueOf(received));
+					}
+				};
+			}
+		}, 16);
+		final CountDownLatch sent = new CountDownLatch(1);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out = client.getOutputStream();
+					out.write(("POST / HTTP/1.1\r\nContent-Length: " + length
+							+ "\r\nConnection: close\r\n\r\n").getBytes());
+					out.write(new byte[length]);
+					out.flush();
+					sent.countDown();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		assertTrue(subscribed.await(2, TimeUnit.SECONDS));
+		Thread.sleep(300);
+		assertEquals(1, chunks.get());
+		assertFalse(sent.await(0, TimeUnit.SECONDS));
+
+		subscription[0].request(Long.MAX_VALUE);
+		assertTrue(sent.await(5, TimeUnit.SECONDS));
+		assertTrue(readAll().endsWith("\r\n\r\n" + length));
+	}
+
+	/**
+	 * A request of zero is an error of the subscriber, the application can
+	 * still answer.
+	 */
+	public void testStreamedBody_requestZero() throws Exception {
+		serve(new StreamingCallback() {
+
+			@Override
+			Flow.Subscriber<ByteBuffer> subscriber(final HttpRequest request) {
+				return new Flow.Subscriber<ByteBuffer>() {
+
+					@Override
+					public void onSubscribe(Flow.Subscription s) {
+						s.request(0);
+					}
+
+					@Override
+					public void onNext(ByteBuffer item) {
+						fail("no demand");
+					}
+
+					@Override
+					public void onError(Throwable e) {
+						respond(request, e.getClass().getSimpleName());
+					}
+
+					@Override
+					public void onComplete() {
+						fail("no demand");
+					}
+				};
+			}
+		}, 16);
+		OutputStream out = client.getOutputStream();
+		out.write("POST / HTTP/1.1\r\nContent-Length: 10\r\n\r\n".getBytes());
+		out.flush();
+		assertTrue(readAll().endsWith("\r\n\r\nIllegalArgumentException"));
+	}
+
+	/**
+	 * Cancelling stops the body there. The response is written, then the
+	 * connection is closed instead of reading the rest of the body.
+	 */
+	public void testStreamedBody_cancel() throws Exception {
+		final AtomicInteger chunks = new AtomicInteger();
+		serve(new StreamingCallback() {
+
+			@Override
+			Flow.Subscriber<ByteBuffer> subscriber(final HttpRequest request) {
+				return new Flow.Subscriber<ByteBuffer>() {
+
+					private Flow.Subscription subscription;
+
+					@Override
+					public void onSubscribe(Flow.Subscription s) {
+						subscription = s;
+						s.request(Long.MAX_VALUE);
+					}
+
+					@Override
+					public void onNext(ByteBuffer item) {
+						chunks.incrementAndGet();
+						subscription.cancel();
+						request.write("HTTP/1.1 413 Request Entity Too Large\r\n"
+								.getBytes());
+						request.write("Content-Length: 0\r\n\r\n".getBytes());
+						request.finish();
+					}
+
+					@Override
+					public void onError(Throwable e) {
+					}
+
+					@Override
+					public void onComplete() {
+					}
+				};
+			}
+		}, 16);
+		OutputStream out = client.getOutputStream();
+		// a part of the body only, nothing left unread when the server
+		// closes.
+		out.write("POST / HTTP/1.1\r\nContent-Length: 100000\r\n\r\n12345"
+				.getBytes());
+		out.flush();
+		assertEquals("HTTP/1.1 413 Request Entity Too Large\r\n"
+				+ "Content-Length: 0\r\n\r\n", readAll());
+		assertEquals(1, chunks.get());
+	}
+
+	public void testTransferEncoding_rejected() throws Exception {
+		serve(ECHO, 16);
+		OutputStream out = client.getOutputStream();
+		out.write(("POST / HTTP/1.1\r\nTransfer-Encoding: chunked\r\n"
+				+ "Content-Length: 3\r\n\r\n").getBytes());
+		out.flush();
+		assertTrue(readAll().startsWith("HTTP/1.1 400 "));
+	}
+
+	/**
+	 * A Content-Length that is not a number, or repeated with another
+	 * value, is rejected instead of letting the body be read as the next
+	 * request.
+	 */
+	public void testContentLength_malformed() throws Exception {
+		String[] lengths = { "Content-Length: -5\r\n",
+				"Content-Length: abc\r\n", "Content-Length: +5\r\n",
+				"Content-Length: 5\r\nContent-Length: 6\r\n",
+				"Content-Length: 5, 6\r\n" };
+		for (String length : lengths) {
+			serve(ECHO, 16);
+			OutputStream out = client.getOutputStream();
+			out.write(("POST / HTTP/1.1\r\n" + length
+					+ "\r\nGET /smuggled HTTP/1.1\r\n\r\n").getBytes());
+			out.flush();
+			String response = readAll();
+			assertTrue(length + response, response
+					.startsWith("HTTP/1.1 400 "));
+			assertFalse(length + response, response.contains("HTTP/1.1 200"));
+			client.close();
+			client = new Socket("localhost", server.socket().getLocalPort());
+			client.setSoTimeout(5000);
+		}
+	}
+
+	/**
+	 * The same length repeated is the length.
+	 */
+	public void testContentLength_identicalDuplicates() throws Exception {
+		serve(ECHO, 16);
+		OutputStream out = client.getOutputStream();
+		out.write(("POST / HTTP/1.1\r\nContent-Length: 5\r\n"
+				+ "Content-Length: 5\r\nConnection: close\r\n\r\nhello")
+				.getBytes());
+		out.flush();
+		assertTrue(readAll().endsWith("\r\n\r\nhello"));
+	}
+
+	/**
+	 * As in ExecutionMode.POOL: events handled in a pool, the application
+	 * run in the thread handling them and finishing from threads of its
+	 * own. Requests are not read ahead, a pipelining client is still
+	 * answered in order.
+	 */
+	public void testPipeline_poolMode() throws Exception {
+		loop = new IOLoop(Executors.newFixedThreadPool(2, DAEMON));
+		loop.startInThread(DAEMON);
+		final AtomicInteger open = new AtomicInteger();
+		final AtomicInteger maxOpen = new AtomicInteger();
+		serve(new RequestCallback() {
+
+			@Override
+			public void execute(final HttpRequest request) {
+				int now = open.incrementAndGet();
+				if (now > maxOpen.get())
+					maxOpen.set(now);
+				new Thread() {
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(50);
+						} catch (InterruptedException e) {
+							return;
+						}
+						open.decrementAndGet();
+						respond(request, request.getUri());
+					}
+				}.start();
+			}
+		}, new ConnectionParameters(null, null,
+				ConnectionParameters.DEFAULT_BODY_SPILL_THRESHOLD, 8192, 65536,
+				16));
+		StringBuilder requests = new StringBuilder();
+		for (int i = 0; i < 4; i++)
+			requests.append("GET /" + i + " HTTP/1.1\r\n"
+					+ (i == 3 ? "Connection: close\r\n" : "") + "\r\n");
+		OutputStream out = client.getOutputStream();
+		out.write(requests.toString().getBytes());
+		out.flush();
+		String responses = readAll();
+		for (int i = 0; i < 3; i++)
+			assertTrue(responses, responses.indexOf("\r\n\r\n/" + i) != -1
+					&& responses.indexOf("\r\n\r\n/" + i) < responses
+							.indexOf("\r\n\r\n/" + (i + 1)));
+		assertEquals(1, maxOpen.get());
+	}
+
+	/**
+	 * In ExecutionMode.POOL a request finished while it is executed lets
+	 * the next one be read right away, its body arriving later.
+	 */
+	public void testPipeline_poolModeSplitBody() throws Exception {
+		loop = new IOLoop(Executors.newFixedThreadPool(2, DAEMON));
+		loop.startInThread(DAEMON);
+		serve(new RequestCallback() {
+
+			@Override
+			public void execute(HttpRequest request) {
+				respond(request, request.getUri() + "|"
+						+ request.getBodyString());
+			}
+		}, new ConnectionParameters(null, null,
+				ConnectionParameters.DEFAULT_BODY_SPILL_THRESHOLD, 8192, 65536,
+				16));
+		OutputStream out = client.getOutputStream();
+		out.write(("GET /a HTTP/1.1\r\n\r\nPOST /b HTTP/1.1\r\n"
+				+ "Content-Length: 10\r\nConnection: close\r\n\r\n12345")
+				.getBytes());
+		out.flush();
+		Thread.sleep(100);
+		out.write("67890".getBytes());
+		out.flush();
+		String responses = readAll();
+		assertTrue(responses, responses.contains("\r\n\r\n/a|"));
+		assertTrue(responses, responses.endsWith("\r\n\r\n/b|1234567890"));
+	}
+}
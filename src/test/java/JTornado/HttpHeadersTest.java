@@ -0,0 +1,94 @@
+package JTornado;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.HttpParser;
+import org.jtornadoweb.HttpServer.HttpHeaders;
+
+public class HttpHeadersTest extends TestCase {
+
+	public HttpHeadersTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(HttpHeadersTest.class);
+	}
+
+	private static HttpHeaders parse(String request) {
+		ByteBuffer data = ByteBuffer.wrap(request
+				.getBytes(StandardCharsets.ISO_8859_1));
+		HttpParser parser = new HttpParser();
+		parser.scan(data, 0, data.limit());
+		assertTrue(parser.isComplete());
+		return HttpHeaders.parse(data, parser);
+	}
+
+	public void testParse_caseInsensitive() {
+		HttpHeaders headers = parse("GET / HTTP/1.1\r\ncontent-length: 5\r\n"
+				+ "HOST: a:1\r\nX-Custom-Thing: b\r\n\r\n");
+		assertEquals("5", headers.get("Content-Length"));
+		assertEquals("5", headers.get("CONTENT-LENGTH"));
+		assertEquals("a:1", headers.get("host"));
+		assertEquals("b", headers.get("x-custom-thing"));
+		assertTrue(headers.contains("X-CUSTOM-THING"));
+		assertFalse(headers.contains("X-Custom"));
+		assertNull(headers.get("Cookie"));
+		assertEquals("none", headers.get("Cookie", "none"));
+	}
+
+	public void testParse_multipleValues() {
+		HttpHeaders headers = parse("GET / HTTP/1.1\r\nAccept: a\r\n"
+				+ "X-Forwarded-For: 1.1.1.1\r\naccept: b\r\nX-A: c\r\n"
+				+ "x-a: d\r\n\r\n");
+		assertEquals(Arrays.asList("a", "b"), headers.getList("Accept"));
+		assertEquals("a,b", headers.get("Accept"));
+		assertEquals(Arrays.asList("c", "d"), headers.getList("X-A"));
+		assertEquals("1.1.1.1", headers.get("X-Forwarded-For"));
+		assertTrue(headers.getList("Cookie").isEmpty());
+	}
+
+	/**
+	 * Values are decoded once, when first asked for.
+	 */
+	public void testGet_decodedOnce() {
+		HttpHeaders headers = parse("GET / HTTP/1.1\r\nHost: a\r\n\r\n");
+		assertSame(headers.get("Host"), headers.get("host"));
+	}
+
+	public void testPut_replacesAndGrows() {
+		HttpHeaders headers = parse("GET / HTTP/1.1\r\nAccept: a\r\n"
+				+ "accept: b\r\n\r\n");
+		headers.put("ACCEPT", "c");
+		assertEquals(Arrays.asList("c"), headers.getList("Accept"));
+		for (int i = 0; i < 100; i++)
+			headers.add("X-" + i, String.valueOf(i));
+		for (int i = 0; i < 100; i++)
+			assertEquals(String.valueOf(i), headers.get("x-" + i));
+		assertEquals("c", headers.get("Accept"));
+
+		HttpHeaders empty = new HttpHeaders();
+		assertFalse(empty.contains("Host"));
+		empty.put("Host", "a");
+		empty.put("host", "b");
+		assertEquals("b", empty.get("HOST"));
+	}
+
+	public void testParse_string() {
+		HttpHeaders headers = HttpHeaders
+				.parse("Content-Disposition: form-data; name=\"a:b\"\r\n"
+						+ "content-type: text/plain\r\nbad line\r\n");
+		assertEquals("form-data; name=\"a:b\"", headers
+				.get("Content-Disposition"));
+		assertEquals("text/plain", headers.get("Content-Type"));
+	}
+}
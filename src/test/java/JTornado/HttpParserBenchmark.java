@@ -0,0 +1,121 @@
+package JTornado;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.jtornadoweb.HttpParser;
+import org.jtornadoweb.HttpServer.HttpHeaders;
+
+/**
+ * Parses the request line and headers of a typical browser request in one
+ * thread, with the {@link HttpParser} and {@link HttpHeaders} and with the
+ * String splitting they replaced, and reports requests/sec/core for each.
+ * Both decode the method, uri and version and look up the headers every
+ * request reads; the split parsing decodes every other header too. Not a
+ * unit test, run it by hand:
+ *
+ * <pre>
+ * java JTornado.HttpParserBenchmark [seconds]
+ * </pre>
+ */
+public class HttpParserBenchmark {
+
+	private static final String REQUEST = "GET /static/js/app.js?v=3 HTTP/1.1\r\n"
+			+ "Host: www.example.com:8888\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/118.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Referer: http://www.example.com:8888/index.html\r\n"
+			+ "Cookie: session=7a1f3c9e2b; theme=dark\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "Cache-Control: max-age=0\r\n\r\n";
+
+	private static volatile Object sink;
+
+	public static void main(String[] args) {
+		long seconds = args.length > 0 ? Long.parseLong(args[0]) : 5;
+		ByteBuffer data = ByteBuffer.wrap(REQUEST
+				.getBytes(StandardCharsets.ISO_8859_1));
+		HttpParser parser = new HttpParser();
+		parser.scan(data, 0, data.limit());
+		int headers = parser.getHeaderCount();
+
+		// warm up both, then measure each.
+		run(parser, data, true, 1);
+		run(parser, data, false, 1);
+		double[] parsed = run(parser, data, true, seconds);
+		double[] split = run(parser, data, false, seconds);
+
+		System.out.println(String.format("%d bytes, %d headers", data.limit(),
+				headers));
+		System.out.println(String.format(
+				"HttpParser %,12.0f req/s/core %,8.0f bytes allocated/req",
+				parsed[0], parsed[1]));
+		System.out.println(String.format(
+				"split      %,12.0f req/s/core %,8.0f bytes allocated/req",
+				split[0], split[1]));
+	}
+
+	/**
+	 * Requests per second and bytes allocated per request.
+	 */
+	private static double[] run(HttpParser parser, ByteBuffer data,
+			boolean useParser, long seconds) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		// getCurrentThreadAllocatedBytes() needs Java 14.
+		long thread = Thread.currentThread().getId();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		long deadline = System.nanoTime() + seconds * 1000000000L;
+		long start = System.nanoTime();
+		long count = 0;
+		while (System.nanoTime() < deadline) {
+			for (int i = 0; i < 1000; i++) {
+				if (useParser)
+					sink = parse(parser, data);
+				else
+					sink = split(data);
+			}
+			count += 1000;
+		}
+		long elapsed = System.nanoTime() - start;
+		allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+		return new double[] { count * 1e9 / elapsed,
+				allocated / (double) count };
+	}
+
+	private static HttpHeaders parse(HttpParser parser, ByteBuffer data) {
+		parser.reset();
+		parser.scan(data, 0, data.limit());
+		parser.getMethod(data);
+		parser.getUri(data);
+		parser.getVersion(data);
+		return lookups(HttpHeaders.parse(data, parser));
+	}
+
+	/**
+	 * The headers every request looks up.
+	 */
+	private static HttpHeaders lookups(HttpHeaders headers) {
+		headers.get("Connection", "");
+		headers.get("Content-Length", "0");
+		headers.get("X-Scheme", "http");
+		return headers;
+	}
+
+	/**
+	 * The parsing of the request head before {@link HttpParser}.
+	 */
+	private static HttpHeaders split(ByteBuffer data) {
+		String head = new String(data.array(), 0, data.limit(),
+				StandardCharsets.ISO_8859_1);
+		int eol = head.indexOf("\r\n");
+		String[] startLine = head.substring(0, eol).split(" ");
+		HttpHeaders headers = HttpHeaders.parse(head.substring(eol + 2, head
+				.length() - 1));
+		sink = startLine;
+		return lookups(headers);
+	}
+}
@@ -0,0 +1,218 @@
+package JTornado;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.HttpParser;
+
+public class HttpParserTest extends TestCase {
+
+	public HttpParserTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(HttpParserTest.class);
+	}
+
+	private static ByteBuffer bytes(String data) {
+		return ByteBuffer.wrap(data.getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	/**
+	 * Scans the request in pieces of <b>step</b> bytes, as partial reads.
+	 *
+	 * @return bytes of the request, or -1
+	 */
+	private static int scan(HttpParser parser, ByteBuffer data, int step) {
+		for (int start = 0; start < data.limit(); start += step) {
+			int end = parser.scan(data, start, Math.min(start + step, data
+					.limit()));
+			if (end != -1)
+				return end;
+		}
+		return -1;
+	}
+
+	public void testScan_request() {
+		HttpParser parser = new HttpParser();
+		ByteBuffer data = bytes("GET /a?b=c HTTP/1.1\r\nHost: localhost:8888\r\n"
+				+ "X-Empty:\r\nAccept:  text/html ; q=1 \t\r\n\r\nbody");
+		assertEquals(data.limit() - 4, scan(parser, data, data.limit()));
+		assertTrue(parser.isComplete());
+		assertSame("GET", parser.getMethod(data));
+		assertEquals("/a?b=c", parser.getUri(data));
+		assertSame("HTTP/1.1", parser.getVersion(data));
+		assertEquals(3, parser.getHeaderCount());
+		assertEquals("Host", parser.getHeaderName(data, 0));
+		// the colons of the value are kept.
+		assertEquals("localhost:8888", parser.getHeaderValue(data, 0));
+		assertEquals("", parser.getHeaderValue(data, 1));
+		assertEquals("text/html ; q=1", parser.getHeaderValue(data, 2));
+	}
+
+	/**
+	 * A byte at a time the parser resumes where the previous read ended.
+	 */
+	public void testScan_partialReads() {
+		HttpParser parser = new HttpParser();
+		ByteBuffer data = bytes("\r\nPOST / HTTP/1.0\nContent-Length: 5\n\n");
+		assertEquals(data.limit(), scan(parser, data, 1));
+		assertSame("POST", parser.getMethod(data));
+		assertSame("HTTP/1.0", parser.getVersion(data));
+		assertEquals("5", parser.getHeaderValue(data, 0));
+	}
+
+	public void testScan_malformed() {
+		String[] requests = { "GET  / HTTP/1.1\r\n\r\n",
+				"GET / HTTX/1.1\r\n\r\n", "GET / HTTP/1.10\r\n\r\n",
+				"GET /\r\n\r\n", "G(T / HTTP/1.1\r\n\r\n",
+				"GET / HTTP/1.1\r\nHost : a\r\n\r\n",
+				"GET / HTTP/1.1\r\nA: b\r\n folded\r\n\r\n",
+				"GET / HTTP/1.1\r\nA: b\0c\r\n\r\n",
+				"GET / HTTP/1.1\rX\r\n\r\n" };
+		for (String request : requests) {
+			HttpParser parser = new HttpParser();
+			assertTrue(request, scan(parser, bytes(request), 3) != -1);
+			assertFalse(request, parser.isComplete());
+			assertEquals(request, 400, parser.getErrorStatus());
+		}
+	}
+
+	public void testScan_limits() {
+		HttpParser parser = new HttpParser(32, 64);
+		assertEquals(33, scan(parser, bytes("GET /" + repeat('a', 100)
+				+ " HTTP/1.1\r\n\r\n"), 7));
+		assertEquals(414, parser.getErrorStatus());
+
+		parser.reset();
+		assertEquals(65, scan(parser, bytes("GET / HTTP/1.1\r\nA: "
+				+ repeat('a', 100) + "\r\n\r\n"), 7));
+		assertEquals(431, parser.getErrorStatus());
+
+		parser.reset();
+		ByteBuffer data = bytes("GET / HTTP/1.1\r\nA: b\r\n\r\n");
+		assertEquals(data.limit(), scan(parser, data, 7));
+		assertTrue(parser.isComplete());
+	}
+
+	private static String repeat(char c, int count) {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < count; i++)
+			builder.append(c);
+		return builder.toString();
+	}
+
+	private static final String TOKEN = "abcdefghijklmnopqrstuvwxyz"
+			+ "ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!#$%&'*+-.^_`|~";
+
+	private static final String VISIBLE = TOKEN + "\"(),/;<=>?@[\\]{}";
+
+	private static String random(Random random, String chars, int min, int max) {
+		int length = min + random.nextInt(max - min + 1);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < length; i++)
+			builder.append(chars.charAt(random.nextInt(chars.length())));
+		return builder.toString();
+	}
+
+	/**
+	 * Random well formed requests, split at random points, give the same
+	 * method, uri, version and headers as the split based parsing the parser
+	 * replaced. Values hold no colon, which that parsing cut at.
+	 */
+	public void testScan_fuzzAgainstSplitParsing() {
+		Random random = new Random(42);
+		HttpParser parser = new HttpParser();
+		for (int n = 0; n < 2000; n++) {
+			StringBuilder request = new StringBuilder();
+			request.append(random(random, TOKEN, 1, 10)).append(' ').append(
+					'/').append(random(random, VISIBLE + ":", 0, 40)).append(
+					" HTTP/1.").append(random.nextInt(2)).append("\r\n");
+			int headers = random.nextInt(12);
+			for (int i = 0; i < headers; i++) {
+				request.append(random(random, TOKEN, 1, 20)).append(':');
+				if (random.nextBoolean())
+					request.append(' ');
+				request.append(random(random, VISIBLE + " ", 1, 60));
+				request.append("\r\n");
+			}
+			request.append("\r\n");
+			String data = request.toString();
+
+			String[] expectedLine = splitLine(data);
+			Map<String, String> expected = splitHeaders(data);
+
+			parser.reset();
+			ByteBuffer bytes = bytes(data);
+			assertEquals(data, bytes.limit(), scan(parser, bytes, 1 + random
+					.nextInt(bytes.limit())));
+			assertTrue(data, parser.isComplete());
+			assertEquals(data, expectedLine[0], parser.getMethod(bytes));
+			assertEquals(data, expectedLine[1], parser.getUri(bytes));
+			assertEquals(data, expectedLine[2], parser.getVersion(bytes));
+			Map<String, String> actual = new HashMap<String, String>();
+			for (int i = 0; i < parser.getHeaderCount(); i++)
+				actual.put(parser.getHeaderName(bytes, i), parser
+						.getHeaderValue(bytes, i));
+			assertEquals(data, expected, actual);
+		}
+	}
+
+	/**
+	 * Random bytes end in a request, an error or a wait for more bytes, never
+	 * in an exception, and errors carry a status.
+	 */
+	public void testScan_fuzzGarbage() {
+		Random random = new Random(7);
+		HttpParser parser = new HttpParser(256, 1024);
+		byte[] valid = "GET /x HTTP/1.1\r\nHost: a:b\r\nA: c\r\n\r\n"
+				.getBytes(StandardCharsets.ISO_8859_1);
+		for (int n = 0; n < 5000; n++) {
+			byte[] data = valid.clone();
+			for (int i = random.nextInt(4); i >= 0; i--)
+				data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+			parser.reset();
+			int end = scan(parser, ByteBuffer.wrap(data), 1 + random
+					.nextInt(data.length));
+			if (end == -1)
+				continue;
+			assertTrue(end <= data.length);
+			if (!parser.isComplete())
+				assertEquals(400, parser.getErrorStatus());
+		}
+	}
+
+	/**
+	 * The request line and headers as split before the parser.
+	 */
+	private static String[] splitLine(String data) {
+		int eol = data.indexOf("\r\n");
+		return data.substring(0, eol).split(" ");
+	}
+
+	private static Map<String, String> splitHeaders(String data) {
+		int eol = data.indexOf("\r\n");
+		Map<String, String> map = new HashMap<String, String>();
+		for (String line : data.substring(eol + 2, data.length() - 1).split(
+				"\r\n")) {
+			if (line.equals("") || line.equals("\r"))
+				continue;
+			String[] h = line.split(":");
+			if (h.length == 1)
+				continue;
+			map.put(h[0], h[1].trim());
+		}
+		return map;
+	}
+}
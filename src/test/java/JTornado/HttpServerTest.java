@@ -0,0 +1,261 @@
+package JTornado;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.HttpServer;
+import org.jtornadoweb.HttpServer.ExecutionMode;
+import org.jtornadoweb.HttpServer.HttpRequest;
+import org.jtornadoweb.HttpServer.OverloadPolicy;
+import org.jtornadoweb.IOLoop;
+import org.jtornadoweb.Web.RequestCallback;
+
+/**
+ * Servers listening on a free port, in a daemon thread, talked to with plain
+ * sockets.
+ */
+public class HttpServerTest extends TestCase {
+
+	private static final RequestCallback OK = new RequestCallback() {
+
+		@Override
+		public void execute(HttpRequest request) {
+			request.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\nok"
+					.getBytes());
+			request.finish();
+		}
+	};
+
+	public HttpServerTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(HttpServerTest.class);
+	}
+
+	static int freePort() throws Exception {
+		ServerSocket socket = new ServerSocket(0);
+		try {
+			return socket.getLocalPort();
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Listens in a daemon thread, the server never stops.
+	 */
+	static int listen(final HttpServer server) throws Exception {
+		final int port = freePort();
+		Thread thread = new Thread("HttpServerTest-" + port) {
+			@Override
+			public void run() {
+				try {
+					server.listen(port);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+		for (int i = 0; i < 50; i++) {
+			try {
+				new Socket("localhost", port).close();
+				break;
+			} catch (java.net.ConnectException e) {
+				Thread.sleep(20);
+			}
+		}
+		return port;
+	}
+
+	static Socket connect(int port) throws Exception {
+		Socket socket = new Socket("localhost", port);
+		socket.setSoTimeout(2000);
+		return socket;
+	}
+
+	static void send(Socket socket, String request) throws Exception {
+		socket.getOutputStream().write(request.getBytes());
+		socket.getOutputStream().flush();
+	}
+
+	/**
+	 * Reads until the connection is closed or the socket times out.
+	 */
+	static String readAll(Socket socket) throws Exception {
+		InputStream in = socket.getInputStream();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1)
+				out.write(buffer, 0, read);
+		} catch (SocketTimeoutException e) {
+			// what was read so far.
+		}
+		return out.toString("ISO-8859-1");
+	}
+
+	/**
+	 * Reads one response of 2 bytes of body.
+	 */
+	static String readResponse(Socket socket) throws Exception {
+		InputStream in = socket.getInputStream();
+		StringBuilder response = new StringBuilder();
+		while (!response.toString().endsWith("\r\n\r\nok")) {
+			int b = in.read();
+			if (b == -1)
+				break;
+			response.append((char) b);
+		}
+		return response.toString();
+	}
+
+	public void testReject_precomputed503() throws Exception {
+		HttpServer server = new HttpServer(OK, false, null, false)
+				.setMaxConnections(1).setOverloadPolicy(OverloadPolicy.REJECT);
+		int port = listen(server);
+		// the probe of listen() may still be counted.
+		Thread.sleep(100);
+		Socket first = connect(port);
+		send(first, "GET / HTTP/1.1\r\n\r\n");
+		assertTrue(readResponse(first).startsWith("HTTP/1.1 200 OK"));
+
+		Socket second = connect(port);
+		assertEquals("HTTP/1.1 503 Service Unavailable\r\n"
+				+ "Content-Length: 0\r\nConnection: close\r\n\r\n",
+				readAll(second));
+		assertTrue(server.getRejectedCount() >= 1);
+		first.close();
+		second.close();
+	}
+
+	public void testPauseAccept_resumes() throws Exception {
+		HttpServer server = new HttpServer(OK, false, null, false)
+				.setMaxConnections(1);
+		int port = listen(server);
+		Thread.sleep(100);
+		Socket first = connect(port);
+		send(first, "GET / HTTP/1.1\r\n\r\n");
+		assertTrue(readResponse(first).startsWith("HTTP/1.1 200 OK"));
+
+		// waits in the backlog.
+		Socket second = connect(port);
+		send(second, "GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+		second.setSoTimeout(300);
+		assertEquals("", readAll(second));
+		assertTrue(server.getPausedCount() >= 1);
+
+		first.close();
+		second.setSoTimeout(2000);
+		assertTrue(readAll(second).startsWith("HTTP/1.1 200 OK"));
+		second.close();
+	}
+
+	/**
+	 * Registrations of each loop, the server channels included.
+	 */
+	private static long[] connectionCounts(List<IOLoop> loops) {
+		long[] counts = new long[loops.size()];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = loops.get(i).getConnectionCount();
+		return counts;
+	}
+
+	/**
+	 * In multi-reactor mode the connections are spread over the IOLoops in
+	 * turn.
+	 */
+	public void testMultiReactor_roundRobin() throws Exception {
+		HttpServer server = new HttpServer(OK, false, null, false)
+				.setMultiReactor(true).setIOLoops(3);
+		int port = listen(server);
+		Thread.sleep(100);
+		long[] before = connectionCounts(server.getIOLoops());
+		for (int i = 0; i < 6; i++) {
+			Socket socket = connect(port);
+			send(socket, "GET / HTTP/1.1\r\n\r\n");
+			assertTrue(readResponse(socket).startsWith("HTTP/1.1 200 OK"));
+			socket.close();
+		}
+		long[] after = connectionCounts(server.getIOLoops());
+		for (int i = 0; i < 3; i++)
+			assertEquals(2, after[i] - before[i]);
+	}
+
+	/**
+	 * With SO_REUSEPORT the kernel spreads the connections over the
+	 * acceptors, each one serving those it accepted.
+	 */
+	public void testAcceptors_reusePort() throws Exception {
+		HttpServer server = new HttpServer(OK, false, null, false)
+				.setAcceptors(2);
+		int port = listen(server);
+		if (server.getAcceptorLoops().size() < 2)
+			// no SO_REUSEPORT here, one acceptor.
+			return;
+		Thread.sleep(100);
+		long[] before = connectionCounts(server.getAcceptorLoops());
+		for (int i = 0; i < 40; i++) {
+			Socket socket = connect(port);
+			send(socket, "GET / HTTP/1.1\r\n\r\n");
+			assertTrue(readResponse(socket).startsWith("HTTP/1.1 200 OK"));
+			socket.close();
+		}
+		long[] after = connectionCounts(server.getAcceptorLoops());
+		assertEquals(40, after[0] - before[0] + after[1] - before[1]);
+		for (int i = 0; i < 2; i++)
+			assertTrue(Arrays.toString(after), after[i] - before[i] > 0);
+	}
+
+	/**
+	 * Virtual threads never queue a task, the handlers running are
+	 * counted.
+	 */
+	public void testMaxQueuedTasks_virtual() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(1);
+		HttpServer server = new HttpServer(new RequestCallback() {
+
+			@Override
+			public void execute(HttpRequest request) {
+				started.countDown();
+				try {
+					release.await(2, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				OK.execute(request);
+			}
+		}, false, null, false).setExecutionMode(ExecutionMode.VIRTUAL)
+				.setMaxQueuedTasks(1).setOverloadPolicy(OverloadPolicy.REJECT);
+		int port = listen(server);
+		Socket first = connect(port);
+		send(first, "GET / HTTP/1.1\r\n\r\n");
+		assertTrue(started.await(2, TimeUnit.SECONDS));
+
+		Socket second = connect(port);
+		assertTrue(readAll(second).startsWith("HTTP/1.1 503 "));
+		release.countDown();
+		assertTrue(readResponse(first).startsWith("HTTP/1.1 200 OK"));
+		first.close();
+		second.close();
+	}
+}
@@ -0,0 +1,302 @@
+package JTornado;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.IOLoop;
+import org.jtornadoweb.IOLoop.PeriodicCallback;
+import org.jtornadoweb.IOLoopMetrics;
+import org.jtornadoweb.TimingWheel;
+
+public class IOLoopTest extends TestCase {
+
+	private static final ThreadFactory DAEMON = new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "IOLoopTest");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private IOLoop loop;
+
+	public IOLoopTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(IOLoopTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		loop = new IOLoop(Executors.newSingleThreadExecutor(DAEMON));
+		loop.startInThread(DAEMON);
+	}
+
+	/**
+	 * Timeouts run in deadline order, not in the order they were added.
+	 */
+	public void testAddTimeout_order() throws Exception {
+		final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(3);
+		long now = System.currentTimeMillis();
+		int[] delays = { 300, 50, 150 };
+		for (final int delay : delays) {
+			loop.addTimeout(now + delay, new Runnable() {
+
+				@Override
+				public void run() {
+					order.add(delay);
+					done.countDown();
+				}
+			});
+		}
+		assertTrue("timeouts expired", done.await(2, TimeUnit.SECONDS));
+		assertEquals("first", 50, order.get(0).intValue());
+		assertEquals("second", 150, order.get(1).intValue());
+		assertEquals("third", 300, order.get(2).intValue());
+	}
+
+	/**
+	 * A timeout does not run before its deadline, and runs even if it is
+	 * further than one turn of the wheel.
+	 */
+	public void testAddTimeout_notEarly() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		final long[] ranAt = new long[1];
+		long delay = IOLoop.TIMER_TICK * IOLoop.TIMER_WHEEL_SIZE / 4 + 17;
+		final long deadline = System.currentTimeMillis() + delay;
+		loop.addTimeout(deadline, new Runnable() {
+
+			@Override
+			public void run() {
+				ranAt[0] = System.currentTimeMillis();
+				done.countDown();
+			}
+		});
+		assertTrue("timeout expired", done.await(delay + 2000,
+				TimeUnit.MILLISECONDS));
+		assertTrue("not before deadline", ranAt[0] >= deadline);
+	}
+
+	public void testRemoveTimeout() throws Exception {
+		final CountDownLatch removed = new CountDownLatch(1);
+		final CountDownLatch kept = new CountDownLatch(1);
+		long now = System.currentTimeMillis();
+		TimingWheel.Timeout timeout = loop.addTimeout(now + 100,
+				new Runnable() {
+
+					@Override
+					public void run() {
+						removed.countDown();
+					}
+				});
+		loop.addTimeout(now + 200, new Runnable() {
+
+			@Override
+			public void run() {
+				kept.countDown();
+			}
+		});
+		loop.removeTimeout(timeout);
+		assertTrue("kept timeout expired", kept.await(2, TimeUnit.SECONDS));
+		assertEquals("removed timeout did not run", 1, removed.getCount());
+		assertTrue(timeout.isCancelled());
+	}
+
+	public void testPeriodicCallback() throws Exception {
+		final CountDownLatch runs = new CountDownLatch(5);
+		PeriodicCallback callback = new PeriodicCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				runs.countDown();
+			}
+		}, 20, loop);
+		callback.start();
+		assertTrue("ran 5 times", runs.await(2, TimeUnit.SECONDS));
+		callback.stop();
+	}
+
+	/**
+	 * Callbacks added while the loop is busy run in order without waking the
+	 * selector up again.
+	 */
+	public void testAddCallback_coalescesWakeups() throws Exception {
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Integer> order = new CopyOnWriteArrayList<Integer>();
+		final CountDownLatch done = new CountDownLatch(1000);
+		long before = loop.getWakeupCount();
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		assertTrue("loop busy", running.await(2, TimeUnit.SECONDS));
+		for (int i = 0; i < 1000; i++) {
+			final int n = i;
+			loop.addCallback(new Runnable() {
+
+				@Override
+				public void run() {
+					order.add(n);
+					done.countDown();
+				}
+			});
+		}
+		release.countDown();
+		assertTrue("callbacks ran", done.await(2, TimeUnit.SECONDS));
+		assertTrue("single wakeup", loop.getWakeupCount() - before <= 1);
+		for (int i = 0; i < 1000; i++)
+			assertEquals(i, order.get(i).intValue());
+	}
+
+	/**
+	 * The interest of a key is cleared when its event is handed, and changed
+	 * afterwards on the same key, never registered again.
+	 */
+	public void testInterestOps_keyStaysRegistered() throws Exception {
+		final Semaphore events = new Semaphore(0);
+		Pipe pipe = Pipe.open();
+		pipe.sink().write(ByteBuffer.wrap(new byte[] { 1 }));
+		loop.addHandler(pipe.source(), new IOLoop.EventHandler() {
+
+			@Override
+			public void handleEvents(int opts, SelectableChannel channel) {
+				// never read, the channel stays readable.
+				events.release();
+			}
+		}, SelectionKey.OP_READ);
+		assertTrue(events.tryAcquire(2, TimeUnit.SECONDS));
+		assertFalse("interest cleared", events.tryAcquire(200,
+				TimeUnit.MILLISECONDS));
+
+		loop.enableOps(pipe.source(), SelectionKey.OP_READ);
+		assertTrue("enabled", events.tryAcquire(2, TimeUnit.SECONDS));
+
+		final Pipe.SourceChannel source = pipe.source();
+		// in the loop, applied together before it selects.
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					loop.enableOps(source, SelectionKey.OP_READ);
+					loop.disableOps(source, SelectionKey.OP_READ);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		assertFalse("disabled", events.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+		loop.updateHandler(pipe.source(), SelectionKey.OP_READ);
+		assertTrue("updated", events.tryAcquire(2, TimeUnit.SECONDS));
+		assertEquals(1, loop.getConnectionCount());
+		pipe.sink().close();
+		pipe.source().close();
+	}
+
+	/**
+	 * A channel ready for reads and writes at once gets both handled by an
+	 * EventHandlerAdapter.
+	 */
+	public void testEventHandlerAdapter_combinedReadyOps() throws Exception {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("localhost", 0));
+		SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		SocketChannel accepted = server.accept();
+		client.write(ByteBuffer.wrap(new byte[] { 1 }));
+		final CountDownLatch handled = new CountDownLatch(2);
+		final int[] readyOps = new int[1];
+		loop.addHandler(accepted, new IOLoop.EventHandlerAdapter() {
+
+			@Override
+			public void handleEvents(int opts, SelectableChannel channel)
+					throws Exception {
+				readyOps[0] = opts;
+				super.handleEvents(opts, channel);
+			}
+
+			@Override
+			protected void onRead(SelectableChannel channel) {
+				handled.countDown();
+			}
+
+			@Override
+			protected void onWrite(SelectableChannel channel) {
+				handled.countDown();
+			}
+		}, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		assertTrue(handled.await(2, TimeUnit.SECONDS));
+		assertEquals(SelectionKey.OP_READ | SelectionKey.OP_WRITE, readyOps[0]);
+		assertTrue(accepted.isOpen());
+		client.close();
+		accepted.close();
+		server.close();
+	}
+
+	public void testMetrics() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				throw new IllegalStateException("expected by the test");
+			}
+		});
+		// the loop selects while waiting for the timeout.
+		loop.addTimeout(System.currentTimeMillis() + 50, new Runnable() {
+
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue("timeout expired", done.await(2, TimeUnit.SECONDS));
+		IOLoopMetrics metrics = loop.getMetrics();
+		assertTrue("selects measured", metrics.getSelectCount() > 0);
+		assertEquals(1, metrics.getExceptionCount());
+		assertEquals(Long.valueOf(1), metrics.getExceptionsByType().get(
+				IllegalStateException.class.getName()));
+
+		IOLoopMetrics.Histogram histogram = new IOLoopMetrics.Histogram();
+		for (int i = 1; i <= 100; i++)
+			histogram.record(i * 1000);
+		assertEquals(100, histogram.getCount());
+		assertEquals(50500.0, histogram.getMean());
+		// 50000 falls in the bucket [32768, 65535]
+		assertEquals(65535, histogram.getPercentile(0.5));
+		assertEquals(131071, histogram.getPercentile(0.99));
+	}
+}
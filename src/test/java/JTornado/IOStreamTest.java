@@ -0,0 +1,596 @@
+package JTornado;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.jtornadoweb.IOLoop;
+import org.jtornadoweb.IOStream;
+
+/**
+ * Reads of an IOStream served by a loop without pool, fed by a plain socket.
+ */
+public class IOStreamTest extends TestCase {
+
+	private static final ThreadFactory DAEMON = new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "IOStreamTest");
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
+	private IOLoop loop;
+	private ServerSocketChannel server;
+	private Socket client;
+	private IOStream stream;
+
+	public IOStreamTest(String testName) {
+		super(testName);
+	}
+
+	/**
+	 * @return the suite of tests being tested
+	 */
+	public static Test suite() {
+		return new TestSuite(IOStreamTest.class);
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		loop = new IOLoop(null);
+		loop.startInThread(DAEMON);
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress("localhost", 0));
+		client = new Socket("localhost", server.socket().getLocalPort());
+		client.setTcpNoDelay(true);
+		SocketChannel channel = server.accept();
+		channel.configureBlocking(false);
+		stream = new IOStream(channel, loop);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		client.close();
+		server.close();
+	}
+
+	/**
+	 * Reads until the delimiter over and over, from the loop thread.
+	 */
+	private BlockingQueue<String> readLines(final String delimiter) {
+		final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				final Runnable self = this;
+				try {
+					stream.readUntil(delimiter, new IOStream.StreamHandler() {
+
+						@Override
+						public void execute(String data) throws Exception {
+							lines.add(data);
+							self.run();
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		return lines;
+	}
+
+	/**
+	 * A delimiter split between two reads is found, and the data handed to
+	 * the callback ends right after it.
+	 */
+	public void testReadUntil_splitDelimiter() throws Exception {
+		BlockingQueue<String> lines = readLines("\r\n\r\n");
+		OutputStream out = client.getOutputStream();
+		out.write("GET / HTTP/1.1\r\nHost: a\r\n\r".getBytes());
+		out.flush();
+		assertNull(lines.poll(200, TimeUnit.MILLISECONDS));
+		out.write("\nGET /b HTTP/1.1\r\n\r\n".getBytes());
+		out.flush();
+		assertEquals("GET / HTTP/1.1\r\nHost: a\r\n\r\n", lines.poll(2,
+				TimeUnit.SECONDS));
+		assertEquals("GET /b HTTP/1.1\r\n\r\n", lines.poll(2,
+				TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Buffers are leased while bytes are pending and given back once they are
+	 * consumed, so an idle stream holds none.
+	 */
+	public void testIdle_noBuffersRetained() throws Exception {
+		final BlockingQueue<Long> retained = new LinkedBlockingQueue<Long>();
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					retained.add(stream.getRetainedBytes());
+					stream.readUntil("\r\n\r\n", new IOStream.StreamHandler() {
+
+						@Override
+						public void execute(String data) throws Exception {
+							retained.add(stream.getRetainedBytes());
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		assertEquals(Long.valueOf(0), retained.poll(2, TimeUnit.SECONDS));
+		OutputStream out = client.getOutputStream();
+		out.write("GET / HTTP/1.1\r\n".getBytes());
+		out.flush();
+		Thread.sleep(100);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				retained.add(stream.getRetainedBytes());
+			}
+		});
+		assertTrue("partial request buffered", retained.poll(2,
+				TimeUnit.SECONDS) > 0);
+		out.write("\r\n".getBytes());
+		out.flush();
+		assertEquals(Long.valueOf(0), retained.poll(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Multi-byte characters are decoded only once the whole line is read.
+	 */
+	public void testReadUntil_utf8() throws Exception {
+		BlockingQueue<String> lines = readLines("\n");
+		OutputStream out = client.getOutputStream();
+		byte[] line = "ol\u00e1 \u4e16\u754c\n".getBytes("UTF-8");
+		for (byte b : line) {
+			out.write(b);
+			out.flush();
+		}
+		assertEquals("ol\u00e1 \u4e16\u754c\n", lines.poll(2, TimeUnit.SECONDS));
+	}
+
+	public void testReadBytes() throws Exception {
+		final List<String> chunks = new CopyOnWriteArrayList<String>();
+		final BlockingQueue<String> done = new LinkedBlockingQueue<String>();
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					stream.readBytes(5, new IOStream.StreamHandler() {
+
+						@Override
+						public void execute(String data) throws Exception {
+							chunks.add(data);
+							stream.readUntil("!", new IOStream.StreamHandler() {
+
+								@Override
+								public void execute(String data)
+										throws Exception {
+									done.add(data);
+								}
+							});
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		OutputStream out = client.getOutputStream();
+		out.write("abc".getBytes());
+		out.flush();
+		Thread.sleep(100);
+		out.write("defgh!".getBytes());
+		out.flush();
+		assertEquals("fgh!", done.poll(2, TimeUnit.SECONDS));
+		assertEquals("abcde", chunks.get(0));
+	}
+
+	/**
+	 * Binary reads hand every byte value as sent, none decoded.
+	 */
+	public void testReadBytes_binary() throws Exception {
+		final byte[] sent = new byte[512];
+		for (int i = 0; i < sent.length; i++)
+			sent[i] = (byte) i;
+		final BlockingQueue<ByteBuffer> done = new LinkedBlockingQueue<ByteBuffer>();
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					stream.readUntil(new byte[] { (byte) 0xff, 0 },
+							new IOStream.BufferHandler() {
+
+								@Override
+								public void execute(ByteBuffer data)
+										throws Exception {
+									done.add(data);
+									stream.readBytesInto(sent.length - 257,
+											new IOStream.BufferHandler() {
+
+												@Override
+												public void execute(
+														ByteBuffer data)
+														throws Exception {
+													done.add(data);
+												}
+											});
+								}
+							});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		OutputStream out = client.getOutputStream();
+		out.write(sent);
+		out.flush();
+		ByteBuffer head = done.poll(2, TimeUnit.SECONDS);
+		ByteBuffer rest = done.poll(2, TimeUnit.SECONDS);
+		assertEquals(257, head.remaining());
+		assertEquals(sent.length - 257, rest.remaining());
+		byte[] received = new byte[sent.length];
+		head.get(received, 0, 257);
+		rest.get(received, 257, rest.remaining());
+		assertTrue(Arrays.equals(sent, received));
+	}
+
+	/**
+	 * readInto fills a buffer, then writes the next bytes to a file as they
+	 * arrive.
+	 */
+	public void testReadInto() throws Exception {
+		File tmp = File.createTempFile("IOStreamTest", ".body");
+		tmp.deleteOnExit();
+		final FileChannel file = FileChannel.open(tmp.toPath(),
+				StandardOpenOption.WRITE);
+		final int fileBytes = 100000;
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(5);
+		final CountDownLatch done = new CountDownLatch(2);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					stream.readInto(buffer, new Runnable() {
+
+						@Override
+						public void run() {
+							done.countDown();
+							try {
+								stream.readInto(file, fileBytes,
+										new Runnable() {
+
+											@Override
+											public void run() {
+												done.countDown();
+											}
+										});
+							} catch (Exception e) {
+								e.printStackTrace();
+							}
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		OutputStream out = client.getOutputStream();
+		out.write("head:".getBytes());
+		byte[] body = new byte[fileBytes];
+		for (int i = 0; i < body.length; i++)
+			body[i] = (byte) (i * 31);
+		out.write(body, 0, 1000);
+		out.flush();
+		Thread.sleep(100);
+		out.write(body, 1000, body.length - 1000);
+		out.flush();
+		assertTrue("read", done.await(2, TimeUnit.SECONDS));
+		buffer.flip();
+		assertEquals((byte) 'h', buffer.get(0));
+		assertEquals((byte) ':', buffer.get(4));
+		file.close();
+		assertTrue(Arrays.equals(body, Files.readAllBytes(tmp
+				.toPath())));
+	}
+
+	/**
+	 * Headers and bodies larger than a chunk grow the read buffer.
+	 */
+	public void testRead_largerThanChunk() throws Exception {
+		StringBuilder cookie = new StringBuilder();
+		for (int i = 0; i < 20000; i++)
+			cookie.append((char) ('a' + i % 26));
+		final String header = "GET / HTTP/1.1\r\nCookie: " + cookie
+				+ "\r\n\r\n";
+		final String body = cookie.toString() + cookie + cookie;
+		final BlockingQueue<String> done = new LinkedBlockingQueue<String>();
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					stream.readUntil("\r\n\r\n", new IOStream.StreamHandler() {
+
+						@Override
+						public void execute(String data) throws Exception {
+							done.add(data);
+							stream.readBytes(body.length(),
+									new IOStream.StreamHandler() {
+
+										@Override
+										public void execute(String data)
+												throws Exception {
+											done.add(data);
+										}
+									});
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		OutputStream out = client.getOutputStream();
+		out.write((header + body).getBytes());
+		out.flush();
+		assertEquals(header, done.poll(2, TimeUnit.SECONDS));
+		assertEquals(body, done.poll(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Chunks are handed one per call, at most the size asked, and nothing is
+	 * handed while no chunk is asked.
+	 */
+	public void testReadChunk() throws Exception {
+		final BlockingQueue<ByteBuffer> chunks = new LinkedBlockingQueue<ByteBuffer>();
+		final IOStream.BufferHandler handler = new IOStream.BufferHandler() {
+
+			@Override
+			public void execute(ByteBuffer data) throws Exception {
+				chunks.add(data);
+			}
+		};
+		final Runnable readChunk = new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					stream.readChunk(4, handler);
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		};
+		OutputStream out = client.getOutputStream();
+		out.write("0123456789".getBytes());
+		out.flush();
+		loop.addCallback(readChunk);
+		ByteBuffer chunk = chunks.poll(2, TimeUnit.SECONDS);
+		assertEquals("0123", new String(chunk.array(), 0, chunk.remaining()));
+		assertNull(chunks.poll(200, TimeUnit.MILLISECONDS));
+		loop.addCallback(readChunk);
+		chunk = chunks.poll(2, TimeUnit.SECONDS);
+		assertEquals("4567", new String(chunk.array(), 0, chunk.remaining()));
+		loop.addCallback(readChunk);
+		chunk = chunks.poll(2, TimeUnit.SECONDS);
+		assertEquals("89", new String(chunk.array(), 0, chunk.remaining()));
+	}
+
+	/**
+	 * A write larger than the socket buffers is resumed as the client reads,
+	 * and its handler runs only once every byte left.
+	 */
+	public void testWrite_partial() throws Exception {
+		final int size = 16 * 1024 * 1024;
+		final byte[] head = "head".getBytes();
+		final ByteBuffer body = ByteBuffer.allocate(size - head.length);
+		for (int i = 0; i < body.capacity(); i++)
+			body.put((byte) i);
+		body.flip();
+		final CountDownLatch written = new CountDownLatch(1);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				stream.write(new ByteBuffer[] { ByteBuffer.wrap(head), body },
+						new IOStream.StreamHandler() {
+
+							@Override
+							public void execute(String data) throws Exception {
+								written.countDown();
+							}
+						});
+			}
+		});
+		assertFalse("not written before the client reads", written.await(
+				200, TimeUnit.MILLISECONDS));
+		InputStream in = client.getInputStream();
+		byte[] chunk = new byte[65536];
+		int total = 0;
+		while (total < size) {
+			int read = in.read(chunk);
+			assertTrue(read > 0);
+			for (int i = 0; i < read; i++, total++) {
+				byte expected = total < head.length ? head[total]
+						: (byte) (total - head.length);
+				if (chunk[i] != expected)
+					fail("unexpected byte at " + total);
+			}
+		}
+		assertTrue("written", written.await(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * The stream is not writable above the high watermark, and the drain
+	 * callback runs once the client took enough bytes.
+	 */
+	public void testWatermarks() throws Exception {
+		final int size = 8 * 1024 * 1024;
+		final BlockingQueue<Boolean> writable = new LinkedBlockingQueue<Boolean>();
+		final CountDownLatch drained = new CountDownLatch(1);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				stream.setWriteWatermarks(1024, 4096);
+				stream.write(new ByteBuffer[] { ByteBuffer.allocate(size) },
+						(Runnable) null);
+				writable.add(stream.isWritable());
+				stream.onDrain(new Runnable() {
+
+					@Override
+					public void run() {
+						writable.add(stream.isWritable());
+						drained.countDown();
+					}
+				});
+			}
+		});
+		assertEquals(Boolean.FALSE, writable.poll(2, TimeUnit.SECONDS));
+		assertTrue(stream.getPendingBytes() > 4096);
+		assertFalse("not drained before the client reads", drained.await(
+				200, TimeUnit.MILLISECONDS));
+		InputStream in = client.getInputStream();
+		byte[] chunk = new byte[65536];
+		for (int total = 0; total < size;)
+			total += in.read(chunk);
+		assertTrue("drained", drained.await(2, TimeUnit.SECONDS));
+		assertEquals(Boolean.TRUE, writable.poll());
+		assertEquals(0, stream.getPendingBytes());
+	}
+
+	/**
+	 * A client that takes no bytes of a pending write is closed after the
+	 * write timeout.
+	 */
+	public void testWriteTimeout_stalled() throws Exception {
+		final CountDownLatch closed = new CountDownLatch(1);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				stream.setWriteTimeout(200);
+				stream.setCloseCallback(new Runnable() {
+
+					@Override
+					public void run() {
+						closed.countDown();
+					}
+				});
+				stream.write(new ByteBuffer[] { ByteBuffer
+						.allocate(16 * 1024 * 1024) }, (Runnable) null);
+			}
+		});
+		assertTrue("closed", closed.await(3, TimeUnit.SECONDS));
+		assertEquals(0, stream.getPendingBytes());
+	}
+
+	/**
+	 * Each read moves the deadline of the read timeout: a client sending
+	 * more often than the timeout stays open past several of them, an idle
+	 * one is closed.
+	 */
+	public void testReadTimeout_movedByReads() throws Exception {
+		final CountDownLatch closed = new CountDownLatch(1);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				stream.setReadTimeout(300);
+				stream.setCloseCallback(new Runnable() {
+
+					@Override
+					public void run() {
+						closed.countDown();
+					}
+				});
+			}
+		});
+		BlockingQueue<String> lines = readLines("\n");
+		OutputStream out = client.getOutputStream();
+		for (int i = 0; i < 10; i++) {
+			out.write("x\n".getBytes());
+			out.flush();
+			assertEquals("x\n", lines.poll(2, TimeUnit.SECONDS));
+			Thread.sleep(100);
+		}
+		assertEquals("open after a second", 1, closed.getCount());
+		assertTrue("closed once idle", closed.await(2, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * File regions are sent in order with the buffers written before and
+	 * after them.
+	 */
+	public void testWriteFile() throws Exception {
+		File tmp = File.createTempFile("IOStreamTest", ".txt");
+		tmp.deleteOnExit();
+		FileOutputStream fileOut = new FileOutputStream(tmp);
+		fileOut.write("0123456789".getBytes());
+		fileOut.close();
+		final FileChannel file = FileChannel.open(tmp.toPath(),
+				StandardOpenOption.READ);
+		final CountDownLatch written = new CountDownLatch(1);
+		loop.addCallback(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					stream.write("<".getBytes(), null);
+					stream.writeFile(file, 2, 5, null);
+					stream.write(">".getBytes(), new IOStream.StreamHandler() {
+
+						@Override
+						public void execute(String data) throws Exception {
+							written.countDown();
+						}
+					});
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		assertTrue("written", written.await(2, TimeUnit.SECONDS));
+		InputStream in = client.getInputStream();
+		byte[] expected = "<23456>".getBytes();
+		for (byte b : expected)
+			assertEquals(b, (byte) in.read());
+		assertTrue("file left open", file.isOpen());
+		file.close();
+	}
+}
@@ -0,0 +1,125 @@
+package JTornado;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jtornadoweb.BufferPool;
+import org.jtornadoweb.HttpServer;
+import org.jtornadoweb.HttpServer.ExecutionMode;
+import org.jtornadoweb.Web.Application;
+
+/**
+ * Opens <b>connections</b> keep-alive connections, each sending one request
+ * and then staying idle, and reports the memory the server retains per
+ * connection: heap, direct memory and bytes leased from the
+ * {@link BufferPool}. The clients run in a child JVM so their sockets are
+ * not counted. Not a unit test, run it by hand:
+ *
+ * <pre>
+ * java JTornado.IdleConnectionsBenchmark [connections]
+ * </pre>
+ *
+ * Raise the limit of open files (ulimit -n) above <b>connections</b> first.
+ */
+public class IdleConnectionsBenchmark {
+
+	private static final byte[] REQUEST = ("GET / HTTP/1.1\r\n"
+			+ "Host: localhost\r\n\r\n").getBytes();
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("client")) {
+			client(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+			return;
+		}
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int port = 8091;
+		ExecutionModeBenchmark.startServer(new HttpServer(
+				new Application<ExecutionModeBenchmark.HelloHandler>()
+				.add("/", ExecutionModeBenchmark.HelloHandler.class), false,
+				null, false).setExecutionMode(ExecutionMode.LOOP), port);
+
+		// loads the classes and fills the caches of the pool first.
+		Process warmup = startClients(port, 10);
+		warmup.destroy();
+		warmup.waitFor();
+		Thread.sleep(500);
+
+		long[] before = measure();
+		Process clients = startClients(port, connections);
+		long[] after = measure();
+		clients.destroy();
+		clients.waitFor();
+
+		System.out.println(String.format("%d idle connections", connections));
+		String[] names = { "heap", "direct", "leased" };
+		for (int i = 0; i < names.length; i++)
+			System.out.println(String.format("%-6s %8.0f bytes/connection",
+					names[i], (after[i] - before[i]) / (double) connections));
+		System.exit(0);
+	}
+
+	/**
+	 * Starts the child JVM and waits until its connections are idle.
+	 */
+	private static Process startClients(int port, int connections)
+			throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin"
+				+ File.separator + "java";
+		Process process = new ProcessBuilder(java, "-cp", System
+				.getProperty("java.class.path"),
+				IdleConnectionsBenchmark.class.getName(), "client", String
+						.valueOf(port), String.valueOf(connections))
+				.redirectErrorStream(true).start();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				process.getInputStream()));
+		String line;
+		while ((line = reader.readLine()) != null && !line.equals("ready"))
+			System.out.println(line);
+		return process;
+	}
+
+	/**
+	 * Heap used, direct memory used and bytes leased from the pool, after a
+	 * GC.
+	 */
+	private static long[] measure() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(200);
+		}
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage()
+				.getUsed();
+		long direct = 0;
+		for (BufferPoolMXBean pool : ManagementFactory
+				.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct"))
+				direct = pool.getMemoryUsed();
+		}
+		return new long[] { heap, direct,
+				BufferPool.getDefault().getLeasedBytes() };
+	}
+
+	/**
+	 * Runs in the child JVM: opens the connections, sends a request on each,
+	 * then keeps them open until killed.
+	 */
+	private static void client(int port, int connections) throws Exception {
+		List<Socket> sockets = new ArrayList<Socket>(connections);
+		for (int i = 0; i < connections; i++) {
+			Socket socket = new Socket("localhost", port);
+			socket.getOutputStream().write(REQUEST);
+			ExecutionModeBenchmark.readResponse(new BufferedInputStream(socket
+					.getInputStream()));
+			sockets.add(socket);
+		}
+		System.out.println("ready");
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
@@ -0,0 +1,101 @@
+package JTornado;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jtornadoweb.HttpServer;
+import org.jtornadoweb.HttpServer.ExecutionMode;
+import org.jtornadoweb.Web.Application;
+
+/**
+ * Throughput of clients pipelining <b>batch</b> requests at a time on
+ * keep-alive connections, for each {@link ExecutionMode}, with pipelining
+ * disabled (depth 1) and with the default depth. Not a unit test, run it by
+ * hand:
+ *
+ * <pre>
+ * java JTornado.PipelineBenchmark [connections] [seconds] [batch]
+ * </pre>
+ */
+public class PipelineBenchmark {
+
+	private static final byte[] REQUEST = ("GET / HTTP/1.1\r\n"
+			+ "Host: localhost\r\n\r\n").getBytes();
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int batch = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+		int port = 8100;
+		for (ExecutionMode mode : ExecutionMode.values()) {
+			for (int depth : new int[] { 1,
+					HttpServer.ConnectionParameters.DEFAULT_MAX_PIPELINE_DEPTH }) {
+				ExecutionModeBenchmark.startServer(new HttpServer(
+						new Application<ExecutionModeBenchmark.HelloHandler>()
+								.add("/", ExecutionModeBenchmark.HelloHandler.class),
+						false, null, false).setExecutionMode(mode)
+						.setMaxPipelineDepth(depth), port);
+				// warm up
+				run(port, connections, 1, batch);
+				double rate = run(port, connections, seconds, batch);
+				// POOL reads no request ahead whatever the depth.
+				System.out.println(String.format(
+						"%-7s depth %2d%s, batches of %d: %.0f requests/s",
+						ExecutionModeBenchmark.label(mode), depth,
+						mode == ExecutionMode.POOL ? " (no read ahead)"
+								: "", batch, rate));
+				port++;
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the clients for the given time and returns requests per second.
+	 */
+	static double run(final int port, int connections, int seconds,
+			final int batch) throws Exception {
+		final long end = System.currentTimeMillis() + seconds * 1000L;
+		final AtomicLong completed = new AtomicLong();
+		final CountDownLatch done = new CountDownLatch(connections);
+		final byte[] requests = new byte[REQUEST.length * batch];
+		for (int i = 0; i < batch; i++)
+			System.arraycopy(REQUEST, 0, requests, i * REQUEST.length,
+					REQUEST.length);
+		long start = System.nanoTime();
+		for (int i = 0; i < connections; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						Socket socket = new Socket("localhost", port);
+						socket.setTcpNoDelay(true);
+						OutputStream out = socket.getOutputStream();
+						InputStream in = new BufferedInputStream(socket
+								.getInputStream());
+						while (System.currentTimeMillis() < end) {
+							out.write(requests);
+							for (int n = 0; n < batch; n++)
+								ExecutionModeBenchmark.readResponse(in);
+							completed.addAndGet(batch);
+						}
+						socket.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		done.await();
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		return completed.get() / elapsed;
+	}
+}